@@ -0,0 +1,273 @@
+package org.dpinol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stage which decouples computing from disk writes. Bytes are copied to a large buffer on the calling
+ * thread, and full buffers are handed to a dedicated writer thread, which writes them to a {@link FileChannel}
+ * with positional writes while the caller fills the next one. Buffers rotate between both threads, so the caller
+ * only blocks when all of them are waiting to be written, ie. when the disk is saturated.
+ * Positional writes don't move the channel, so several streams can write to different regions of the same file.
+ * Buffers and the thread are only created when needed, so small files are written by the caller on close.
+ * Ranges of other files bigger than a buffer can be copied by the kernel, see {@link #transferFrom}.
+ * Write errors are thrown by the following call on the stream
+ */
+class AsyncChannelOutputStream extends OutputStream {
+    /**
+     * Handed to the writer thread to stop it
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final int numBuffers;
+    /**
+     * where the next buffer is written. Only accessed by the thread which owns the buffers
+     */
+    private long channelPosition;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<ByteBuffer> fullBuffers;
+    private Thread writer;
+    private ByteBuffer current;
+    private int allocatedBuffers = 1;
+    private volatile IOException failure;
+    private boolean closed = false;
+
+    /**
+     * @return a stream which writes a new file, with the buffers configured in options
+     */
+    static AsyncChannelOutputStream create(File file, SortOptions options) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new AsyncChannelOutputStream(channel, 0, true, options.getWriteBufferSize(),
+                options.getWriteBuffers());
+    }
+
+    /**
+     * @param position     where the first byte is written in the channel
+     * @param closeChannel if true, the channel is closed with the stream
+     * @param numBuffers   at least 2, so that one is filled while the other is written
+     */
+    AsyncChannelOutputStream(FileChannel channel, long position, boolean closeChannel, int bufferSize,
+                             int numBuffers) {
+        if (numBuffers < 2 || bufferSize < 1) {
+            throw new IllegalArgumentException(numBuffers + " buffers of " + bufferSize + " bytes");
+        }
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.numBuffers = numBuffers;
+        this.channelPosition = position;
+        freeBuffers = new ArrayBlockingQueue<>(numBuffers);
+        //one more slot for END
+        fullBuffers = new ArrayBlockingQueue<>(numBuffers + 1);
+        current = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!current.hasRemaining()) {
+            handOff();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src, which are consumed
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+            int n = Math.min(src.remaining(), current.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + n);
+            current.put(chunk);
+            src.position(src.position() + n);
+        }
+    }
+
+    /**
+     * Waits until all bytes written so far are in the channel
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.position() > 0) {
+            handOff();
+        }
+        //all the other buffers are free once the writer is done with them
+        ByteBuffer[] others = new ByteBuffer[allocatedBuffers - 1];
+        try {
+            for (int i = 0; i < others.length; i++) {
+                others[i] = freeBuffers.take();
+            }
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } finally {
+            for (ByteBuffer other : others) {
+                if (other != null) {
+                    freeBuffers.add(other);
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (writer == null) {
+                current.flip();
+                writeBuffer(current);
+            } else {
+                if (current.position() > 0 && failure == null) {
+                    handOff();
+                }
+                fullBuffers.put(END);
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } finally {
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Queues the current buffer to be written, and continues with a free one
+     */
+    private void handOff() throws IOException {
+        checkFailure();
+        if (writer == null) {
+            writer = new Thread(this::writeBuffers, "writer-" + channel);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        current.flip();
+        try {
+            fullBuffers.put(current);
+            ByteBuffer next = freeBuffers.poll();
+            if (next == null && allocatedBuffers < numBuffers) {
+                next = ByteBuffer.allocate(current.capacity());
+                allocatedBuffers++;
+            }
+            current = next != null ? next : freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+        current.clear();
+    }
+
+    /**
+     * Copies count bytes of src from srcPosition with {@link FileChannel#transferTo}, so that they don't go
+     * through the heap. The bytes written before are written first, so the caller waits for them.
+     * Ranges smaller than a buffer are copied as any other bytes
+     */
+    void transferFrom(FileChannel src, long srcPosition, long count) throws IOException {
+        if (count < current.capacity()) {
+            copyFrom(src, srcPosition, count);
+            return;
+        }
+        flush();
+        //the position of the channel may be shared by other streams
+        synchronized (channel) {
+            channel.position(channelPosition);
+            while (count > 0) {
+                long n = src.transferTo(srcPosition, count, channel);
+                if (n <= 0) {
+                    throw new EOFException("transferring " + count + " bytes from " + srcPosition);
+                }
+                srcPosition += n;
+                count -= n;
+                channelPosition += n;
+            }
+        }
+    }
+
+    private void copyFrom(FileChannel src, long srcPosition, long count) throws IOException {
+        while (count > 0) {
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+            ByteBuffer chunk = current.duplicate();
+            chunk.limit((int) Math.min(chunk.limit(), chunk.position() + count));
+            int n = src.read(chunk, srcPosition);
+            if (n < 0) {
+                throw new EOFException("copying " + count + " bytes from " + srcPosition);
+            }
+            current.position(chunk.position());
+            srcPosition += n;
+            count -= n;
+        }
+    }
+
+    private void writeBuffers() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = fullBuffers.take()) != END) {
+                if (failure == null) {
+                    try {
+                        writeBuffer(buffer);
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        //eg. a channel which is not writable
+                        failure = new IOException(e);
+                    }
+                }
+                freeBuffers.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = interrupted(e);
+        }
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channelPosition += channel.write(buffer, channelPosition);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("writing to " + channel, e);
+        }
+    }
+
+    private static InterruptedIOException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException ioe = new InterruptedIOException("interrupted while writing");
+        ioe.initCause(e);
+        return ioe;
+    }
+}
@@ -8,48 +8,86 @@ import java.nio.file.attribute.FileAttribute;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Sorts a text file, line by line.
  * This class splits the line, and distributes them to {@link ChunkSorter}'s,
  * each of which will create several sorted files, which {@link Merger} will merge
- * on a single file
+ * on a single file. Runs may be merged in the background while they're generated, see {@link RunCascade}.
+ * With {@link SortOptions#isSampleSort()}, the work is delegated to a {@link SampleSorter}, which needs no merge.
+ * With {@link SortOptions#getInputRanges()}, the input is split in ranges of whole lines, each of which is parsed
+ * by its own thread and feeds its own sorter. The number of ranges and sorters which are not set are chosen
+ * by a {@link WorkerPlan} when the job starts.
+ * Inputs which fit in the memory budget are sorted in memory instead (see {@link SortOptions#isInMemorySort()})
  */
 public class BigFileSorter {
 
-    //TODO with threaded sort, 100_000 is much slower than 10_000
-    static final int LINES_PER_SORTER = 10_000;
-    private static final int NUM_SORTERS = 5; //6-> 11.8, 5 ->11.3, 4->11.8, 2->11.2
+    /**
+     * Lines for which each sorter initially allocates entries. Runs are flushed according to
+     * {@link SortOptions#getMemoryBudget()}, not to their number of lines
+     */
+    static final int INITIAL_LINES_PER_SORTER = 10_000;
+    /**
+     * Sorters of jobs whose {@link SortOptions#getSortWorkers()} has not been chosen yet
+     */
+    static final int NUM_SORTERS = 5; //6-> 11.8, 5 ->11.3, 4->11.8, 2->11.2
     private static final int NUM_THREADS = NUM_SORTERS;
     static final int QUEUE_BUCKET_SIZE = 10_000;
+    /**
+     * Maximum bytes held by the lines of a bucket, so that buckets of long lines don't exceed the budget
+     */
+    static final int QUEUE_BUCKET_BYTES = 1024 * 1024;
     static final int QUEUE_NUM_BUCKETS = NUM_THREADS ;
+    /**
+     * Buckets queued for the sorter of each range, with {@link SortOptions#getInputRanges()}
+     */
+    static final int RANGE_QUEUE_NUM_BUCKETS = 2;
+    /**
+     * Memory used per line when the input is sorted in memory, besides its bytes: its entry in the store, room
+     * for the entries to grow, and its copy in the aux entries of {@link ChunkParallelSort}
+     */
+    static final int IN_MEMORY_BYTES_PER_LINE = 3 * ChunkStore.ENTRY_LONGS * Long.BYTES;
+    /**
+     * Bytes at the start of the input whose lines are counted to estimate the lines of the whole input
+     */
+    static final int IN_MEMORY_SAMPLE_BYTES = 1024 * 1024;
 
     private static final Random rnd = new Random();
 
     private final File input;
     private final File output;
     private final File tmpFolder;
+    private final SortOptions options;
     private final List<File> tmpFiles = new ArrayList<>(NUM_SORTERS);
     private List<ChunkSorter> sorters = new ArrayList<>(NUM_SORTERS);
     //with newWorkStealingPool I get RejectedExecutionException
-    private final ExecutorService executorService = Executors.newFixedThreadPool(NUM_THREADS);
-    private ArrayBlockingQueue<LineBucket> queue = new ArrayBlockingQueue<>(QUEUE_NUM_BUCKETS);
+    private ExecutorService executorService;
+    private RunCascade runs;
 
 
     /**
      * @param tmpFolder if null, it will be written to output folder
      */
     BigFileSorter(File input, File output, File tmpFolder) throws IOException {
-        if (QUEUE_BUCKET_SIZE > LINES_PER_SORTER)
-            throw new AssertionError("QUEUE_BUCKET_SIZE > LINES_PER_SORTER");
-        Global.log("*** RUNNING WITH " + NUM_THREADS + " threads, "
-                + LINES_PER_SORTER + " lines per sorter, "
-                + QUEUE_NUM_BUCKETS + " buckets of size " + QUEUE_BUCKET_SIZE);
+        this(input, output, tmpFolder, new SortOptions());
+    }
+
+    /**
+     * @param tmpFolder if null, it will be written to output folder
+     */
+    BigFileSorter(File input, File output, File tmpFolder, SortOptions options) throws IOException {
+        Global.log("*** RUNNING WITH " + getNumSorters(options) + " threads, "
+                + getRunBytes(options) / 1_024 + "kB per sorter, "
+                + QUEUE_NUM_BUCKETS + " buckets of size " + QUEUE_BUCKET_SIZE
+                + ", options: " + options);
         this.input = input;
+        //so that the job's blob store is not seen by the caller
+        this.options = options.copy();
         this.output = output;
         if (tmpFolder == null) {
             File parent = output.getParentFile();
@@ -59,25 +97,227 @@ public class BigFileSorter {
         } else {
             this.tmpFolder = tmpFolder;
         }
-        for (int i = 0; i < BigFileSorter.NUM_SORTERS; i++) {
-            sorters.add(new ChunkSorter(this.tmpFolder, Integer.toString(i), executorService, queue));
-        }
     }
 
 
     void sort() throws Exception {
-        map();
-        reduce();
+        if (options.isSampleSort()) {
+            new SampleSorter(input, output, tmpFolder, options).sort();
+            return;
+        }
+        if (options.isInMemorySort() && input.length() <= options.getMemoryBudget()) {
+            long numLines = estimateLines();
+            if (fitsInMemory(numLines) && sortInMemory(numLines)) {
+                return;
+            }
+        }
+        planWorkers();
+        try (RunCascade cascade = new RunCascade(tmpFolder, options)) {
+            runs = cascade;
+            if (!options.isLongLineBlobs()) {
+                map();
+                reduce();
+                return;
+            }
+            try (BlobStore blobs = BlobStore.create(tmpFolder)) {
+                options.setBlobStore(blobs);
+                map();
+                reduce();
+            } finally {
+                options.setBlobStore(null);
+            }
+        } finally {
+            //merged runs are already deleted, so these are only left when the job fails
+            for (File run : tmpFiles) {
+                run.delete();
+            }
+        }
     }
 
 
+    /**
+     * @param numLines lines of the input, see {@link #estimateLines()}
+     * @return true if the input can be sorted in memory within the budget
+     */
+    boolean fitsInMemory(long numLines) {
+        return options.isInMemorySort() && getInMemoryBytes(input.length(), numLines) <= options.getMemoryBudget();
+    }
+
+    /**
+     * @return memory needed to sort in memory an input of lineBytes bytes with numLines lines
+     */
+    static long getInMemoryBytes(long lineBytes, long numLines) {
+        //the last slab may be partially used
+        return lineBytes + ChunkStore.SLAB_SIZE + numLines * IN_MEMORY_BYTES_PER_LINE;
+    }
+
+    /**
+     * @return lines of the input, extrapolated from those which start within its first
+     * {@link #IN_MEMORY_SAMPLE_BYTES}. It's exact for smaller inputs
+     */
+    long estimateLines() throws IOException {
+        long sampleLines = 0;
+        long sampleBytes;
+        try (BigLineReader reader = new BigLineReader(input.toPath(), 0, IN_MEMORY_SAMPLE_BYTES,
+                options.isMappedInput())) {
+            while (reader.getBigLine() != null) {
+                sampleLines++;
+            }
+            sampleBytes = Math.min(reader.getFileOffset(), input.length());
+        }
+        if (sampleBytes == 0) {
+            return 0;
+        }
+        return (long) Math.ceil((double) sampleLines * input.length() / sampleBytes);
+    }
+
+    /**
+     * Loads all the lines in a single store, sorts it with all the cores and writes it to the output.
+     * It gives up if the lines turn out to need more memory than the budget
+     *
+     * @param numLines estimated lines of the input, for which the store is sized
+     * @return false if it gave up, and nothing was written
+     */
+    private boolean sortInMemory(long numLines) throws IOException {
+        Global.log("Sorting " + input.length() / 1_024 + "kB in memory");
+        ChunkStore store = new ChunkStore((int) Math.min(Integer.MAX_VALUE / ChunkStore.ENTRY_LONGS, numLines),
+                options.isOffHeapSlabs());
+        //long lines are read from the input until they're written
+        try (BigLineReader reader = new BigLineReader(input, options.isMappedInput())) {
+            FileLine line;
+            long lineBytes = 0;
+            while ((line = reader.getBigLine()) != null) {
+                lineBytes += Math.min(line.getNumBytes(), FileLine.LENGTH_THRESHOLD);
+                store.add(line);
+                if (getInMemoryBytes(lineBytes, store.size()) > options.getMemoryBudget()) {
+                    Global.log("More lines than estimated, sorting with runs");
+                    return false;
+                }
+            }
+            store.parallelSort(options.getSortEngine(), ForkJoinPool.commonPool());
+            try (RunWriter writer = new TextRunWriter(AsyncChannelOutputStream.create(output, options))) {
+                store.writeTo(writer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses the number of input ranges and sorters which are not set in the options
+     */
+    private void planWorkers() throws IOException {
+        if (options.getInputRanges() > 0 && options.getSortWorkers() > 0) {
+            return;
+        }
+        WorkerPlan plan = WorkerPlan.measure(input, options, Runtime.getRuntime().availableProcessors());
+        if (options.getInputRanges() == 0) {
+            options.setInputRanges(plan.inputRanges);
+        }
+        if (options.getSortWorkers() == 0) {
+            options.setSortWorkers(plan.sortWorkers);
+        }
+    }
+
     private void map() throws Exception {
+        executorService = Executors.newFixedThreadPool(getNumSorters(options));
+        if (options.getInputRanges() > 1) {
+            mapRanges(options.getInputRanges());
+            return;
+        }
+        RingBuffer<LineBucket> queue = new RingBuffer<>(Math.max(QUEUE_NUM_BUCKETS, getNumSorters(options)),
+                options.getQueueWaitStrategy());
+        for (int i = 0; i < getNumSorters(options); i++) {
+            sorters.add(new ChunkSorter(tmpFolder, Integer.toString(i), executorService, queue, runs, options,
+                    getRunBytes(options)));
+        }
+        try (BigLineReader bigLineReader = new BigLineReader(input, options.isMappedInput())) {
+            try {
+                feed(bigLineReader, queue);
+            } finally {
+                //must end before closing the reader, because they read long lines from its file handle
+                awaitSorters();
+            }
+            closeSorters();
+            Global.log("Waited " + queue.getWaits() + " times for the queue");
+        }
+    }
+
+    /**
+     * Each range of the input is read by a thread of its own, which feeds its own sorter
+     */
+    private void mapRanges(int numRanges) throws Exception {
+        long[] bounds = splitInput(numRanges);
+        List<BigLineReader> readers = new ArrayList<>(numRanges);
+        List<RingBuffer<LineBucket>> queues = new ArrayList<>(numRanges);
+        List<Future<Long>> reads = new ArrayList<>(numRanges);
+        ExecutorService readerExecutor = Executors.newFixedThreadPool(numRanges);
+        try {
+            for (int i = 0; i < numRanges; i++) {
+                //lines keep the offsets of the whole file, since every reader opens it and seeks its range
+                BigLineReader reader = new BigLineReader(input.toPath(), bounds[i], bounds[i + 1],
+                        options.isMappedInput());
+                readers.add(reader);
+                RingBuffer<LineBucket> queue = new RingBuffer<>(RANGE_QUEUE_NUM_BUCKETS,
+                        options.getQueueWaitStrategy());
+                queues.add(queue);
+                sorters.add(new ChunkSorter(tmpFolder, Integer.toString(i), executorService, queue, runs,
+                        options, getRunBytes(options)));
+                reads.add(readerExecutor.submit(() -> feed(reader, queue)));
+            }
+            long bytesRead = 0;
+            for (Future<Long> read : reads) {
+                bytesRead += read.get();
+            }
+            Global.log("Read " + bytesRead / 1_024 + "kB from " + numRanges + " ranges");
+        } finally {
+            //when a range fails, the sorters of the others must still end, and then release the readers
+            readerExecutor.shutdown();
+            while (!readerExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Global.log("Waiting for readers");
+            }
+            //only those whose reader was not started are still open
+            for (RingBuffer<LineBucket> queue : queues) {
+                queue.close();
+            }
+            //must end before closing the readers, because they read long lines from their file handles
+            awaitSorters();
+            for (BigLineReader reader : readers) {
+                reader.close();
+            }
+        }
+        closeSorters();
+    }
+
+    /**
+     * @return numRanges + 1 offsets of the input, each of them at the start of a line or at the end of the file.
+     * Range i goes from bounds[i] to bounds[i + 1], and is empty when a line spans a whole range
+     */
+    long[] splitInput(int numRanges) throws IOException {
+        long inputBytes = input.length();
+        long[] bounds = new long[numRanges + 1];
+        bounds[numRanges] = inputBytes;
+        try (BigLineReader reader = new BigLineReader(input)) {
+            for (int i = 1; i < numRanges; i++) {
+                long offset = Math.max(inputBytes * i / numRanges, bounds[i - 1]);
+                bounds[i] = Math.min(reader.seekLineStart(offset), inputBytes);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Puts all the lines of the reader in buckets of the queue, and closes the queue, even on failure.
+     * It stops early if the queue is cancelled by a failed sorter
+     *
+     * @return bytes read
+     */
+    private static long feed(BigLineReader reader, RingBuffer<LineBucket> queue) throws IOException {
         long bytesRead = 0;
         long lastBytesLog = 0;
-        try (BigLineReader bigLineReader = new BigLineReader(input)) {
+        try {
             FileLine fileLine;
             LineBucket bucket = new LineBucket();
-            while ((fileLine = bigLineReader.getBigLine()) != null) {
+            while ((fileLine = reader.getBigLine()) != null) {
                 bytesRead += fileLine.getNumBytes();
                 if (bytesRead - lastBytesLog > 100 * 1_024 * 1_204) {
                     Global.log("Read " + bytesRead / 1_024 + "kB");
@@ -87,15 +327,47 @@ public class BigFileSorter {
 //                chunkSorter.addLine(fileLine);
                 bucket.add(fileLine);
                 if (bucket.isFull()) {
-                    queue.put(bucket);
+                    if (!queue.put(bucket)) {
+                        Global.log("A sorter failed, stopped reading after " + bytesRead / 1_024 + "kB");
+                        return bytesRead;
+                    }
                     bucket = new LineBucket();
                 }
             }
             if (!bucket.isEmpty()) {
                 queue.put(bucket);
             }
-            //must close before closing the reader, because they'll close the input file handle
-            closeSorters();
+        } finally {
+            queue.close();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return number of {@link ChunkSorter}s, one per range with {@link SortOptions#getInputRanges()}
+     */
+    static int getNumSorters(SortOptions options) {
+        if (options.getInputRanges() > 1) {
+            return options.getInputRanges();
+        }
+        return options.getSortWorkers() > 0 ? options.getSortWorkers() : NUM_SORTERS;
+    }
+
+    /**
+     * The memory budget is split across the sorters, each of which flushes a run when its lines, and the aux
+     * entries to sort them in parallel, hold more than its share
+     */
+    static long getRunBytes(SortOptions options) {
+        return Math.max(ChunkStore.SLAB_SIZE, options.getMemoryBudget() / getNumSorters(options));
+    }
+
+    /**
+     * Waits for the sorters to consume their queues, which must be closed
+     */
+    private void awaitSorters() throws InterruptedException {
+        executorService.shutdown();
+        while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+            Global.log("Waiting for flushers");
         }
     }
 
@@ -104,20 +376,21 @@ public class BigFileSorter {
 //            sorter.close();
 //            tmpFiles.addAll(sorter.getFiles());
 //        }
-        executorService.shutdown();
-        while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
-            Global.log("Waiting for flushers");
-        }
+        awaitSorters();
 
         for (ChunkSorter sorter : sorters) {
             sorter.close();
-            tmpFiles.addAll(sorter.getFiles());
         }
+        tmpFiles.addAll(runs.finish());
     }
 
     private void reduce() throws Exception {
-        try (Merger merger = new Merger(tmpFiles, output)) {
-            merger.merge();
+        MergePlan plan = MergePlan.create(tmpFiles, options.getMaxMergeFanIn(), tmpFolder, output);
+        ExecutorService mergeExecutor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            plan.execute(mergeExecutor, options);
+        } finally {
+            mergeExecutor.shutdown();
         }
     }
 
@@ -127,11 +400,13 @@ public class BigFileSorter {
         if (args.length < 2) {
             System.err.println("Usage: " + BigFileSorter.class.getName() + " inputFile outputFile [tmpFolder]");
             System.err.println("If tmpFolder not provide, tmp files will be written in same folder as outputFile");
+            System.err.println("Options are set with system properties, eg. -Dsorter.mappedInput=true");
             System.exit(-1);
         } else if (args.length == 3) {
             tmpFolder = new File(args[2]);
         }
-        BigFileSorter bigFileSorter = new BigFileSorter(new File(args[0]), new File(args[1]), tmpFolder);
+        BigFileSorter bigFileSorter = new BigFileSorter(new File(args[0]), new File(args[1]), tmpFolder,
+                SortOptions.fromSystemProperties());
         bigFileSorter.sort();
     }
 }
\ No newline at end of file
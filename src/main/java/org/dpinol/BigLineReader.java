@@ -5,47 +5,180 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 /**
- * Reads an input file, creating an instance if {@link FileLine} for parsed line
+ * Reads an input file, creating an instance if {@link FileLine} for parsed line.
+ * In mapped mode, the file is mapped in memory in windows of {@link #MAPPED_WINDOW_SIZE} bytes,
+ * and lines are parsed directly from the mapping instead of being copied to an intermediate buffer
  */
-public class BigLineReader implements AutoCloseable {
+public class BigLineReader implements RunReader {
+    /**
+     * Maximum size of each mapped region of the file, when in mapped mode
+     */
+    static final int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
     private final Path input;
     private final FileChannel fileChannel;
-    private final ByteBuffer buffer;
+    private final boolean mapped;
+    private final int mappedWindowSize;
+    private ByteBuffer buffer;
+    /**
+     * where the buffer is filled from when not mapped, the file channel itself or a {@link ReadAheadChannel}
+     */
+    private ReadableByteChannel source;
     private long lineStartFileOffset = 0;
     private int currentBufferOffset = 0;
     private int bufferSize = 0;
     final ByteArrayOutputStream lineHead = new ByteArrayOutputStream(Global.BUFFER_SIZE);
+    /* only used in mapped mode */
+    private final long fileSize;
+    private long windowFileOffset = 0;
+    /**
+     * lines starting at or after this offset are not read
+     */
+    private long endOffset;
 
 
     public BigLineReader(File input) throws IOException {
-        this(Paths.get(input.getAbsolutePath()));
+        this(input, false);
+    }
+
+    /**
+     * @param mapped if true, the file will be read by mapping it in memory
+     */
+    public BigLineReader(File input, boolean mapped) throws IOException {
+        this(Paths.get(input.getAbsolutePath()), mapped);
     }
 
     public BigLineReader(Path input) throws IOException {
+        this(input, false);
+    }
+
+    public BigLineReader(Path input, boolean mapped) throws IOException {
+        this(input, mapped, MAPPED_WINDOW_SIZE);
+    }
+
+    BigLineReader(Path input, boolean mapped, int mappedWindowSize) throws IOException {
         fileChannel = FileChannel.open(input);
         this.input = input;
-        buffer = ByteBuffer.allocate(Global.BUFFER_SIZE);
+        this.mapped = mapped;
+        if (mappedWindowSize < Global.BUFFER_SIZE)
+            throw new IllegalArgumentException("mapped window must fit a short line");
+        this.mappedWindowSize = mappedWindowSize;
+        if (mapped) {
+            fileSize = fileChannel.size();
+            endOffset = fileSize;
+        } else {
+            fileSize = -1;
+            endOffset = Long.MAX_VALUE;
+            buffer = ByteBuffer.allocate(Global.BUFFER_SIZE);
+            source = fileChannel;
+        }
+    }
+
+    /**
+     * Reads only the lines within a range of the file
+     *
+     * @param startOffset must be the start of a line
+     * @param endOffset   must be the start of a line, or the end of the file
+     */
+    public BigLineReader(Path input, long startOffset, long endOffset, boolean mapped) throws IOException {
+        this(input, mapped);
+        seek(startOffset);
+        this.endOffset = Math.min(this.endOffset, endOffset);
+    }
+
+    /**
+     * Moves the reader, so that next line is read from fileOffset
+     */
+    void seek(long fileOffset) throws IOException {
+        lineStartFileOffset = fileOffset;
+        if (!mapped) {
+            closeReadAhead();
+            fileChannel.position(fileOffset);
+            currentBufferOffset = 0;
+            bufferSize = 0;
+        }
+    }
+
+    /**
+     * @return offset of the next line to read
+     */
+    long getFileOffset() {
+        return lineStartFileOffset;
+    }
+
+    /**
+     * @return offset of the first line which starts at or after fileOffset, or the end of the file.
+     * The reader is left at that line
+     */
+    long seekLineStart(long fileOffset) throws IOException {
+        if (fileOffset == 0) {
+            seek(0);
+        } else {
+            //skip the rest of the line including fileOffset - 1
+            seek(fileOffset - 1);
+            getBigLine();
+        }
+        return lineStartFileOffset;
+    }
+
+    /**
+     * Reads the following lines through a {@link ReadAheadChannel}, until the next seek.
+     * Mapped readers are already read ahead by the OS, so they're not changed
+     *
+     * @param readAheadSize see {@link ReadAheadChannel#getBufferSize(SortOptions, int)}. With 0, nothing is done
+     */
+    void readAhead(int readAheadSize) throws IOException {
+        if (mapped || readAheadSize <= 0) {
+            return;
+        }
+        closeReadAhead();
+        //the channel has not been moved since the buffered bytes were read
+        long end = Math.min(endOffset, fileChannel.size());
+        long start = Math.min(fileChannel.position(), end);
+        source = new ReadAheadChannel(fileChannel, start, end, readAheadSize, false);
+    }
+
+    private void closeReadAhead() throws IOException {
+        if (source != fileChannel) {
+            source.close();
+            source = fileChannel;
+        }
+    }
+
+    /**
+     * @return the channel from which lines are read, which must not be moved
+     */
+    FileChannel getFileChannel() {
+        return fileChannel;
     }
 
 
 
     /**
      * Parses the next line from the file and ...
-     * @return an object encapsulating the line, or null when EOF
+     * @return an object encapsulating the line, or null when EOF. It stays valid after reading the next ones
      */
+    @Override
     public FileLine getBigLine() throws IOException {
+        if (mapped) {
+            return getMappedLine();
+        }
+        if (lineStartFileOffset >= endOffset) {
+            return null;
+        }
         long lineLength = 0;
-        int nlPos;
+        int nlPos = -1;
         lineHead.reset();
         do {
             if (currentBufferOffset >= bufferSize) {
                 buffer.clear();
                 currentBufferOffset = 0;
-                bufferSize = fileChannel.read(buffer);
+                bufferSize = source.read(buffer);
                 buffer.flip();
                 if (bufferSize < 0) {
                     break;
@@ -65,42 +198,108 @@ public class BigLineReader implements AutoCloseable {
             }
             currentBufferOffset += newChunkLen + 1;
         } while (nlPos < 0);
-        if (lineHead.size() == 0) {
+        if (nlPos < 0 && lineLength == 0) {
+            //end of file
             return null;
         }
         long curStartOffset = lineStartFileOffset;
         lineStartFileOffset += lineLength + 1;
+        ByteBuffer head = ByteBuffer.wrap(lineHead.toByteArray());
         if (lineLength <= Global.BUFFER_SIZE)
-            return new ShortLine(lineHead.toString());
+            return new ByteLine(head);
         else
-            return new LongLine(fileChannel, lineHead.toString(), curStartOffset, lineLength);
+            return new LongLine(fileChannel, head, curStartOffset, lineLength);
     }
 
     /**
-     * Find the first new line in a buffer
-     *
-     * @return -1 if not found
+     * Parses the next line from the current mapped window, remapping the window when the line does
+     * not fit in it. Short lines are slices of the mapping, so their bytes are not copied
      */
-    private static int findNewLine(ByteBuffer aBuffer, int startIndex, long bufSize) {
-        byte[] array = aBuffer.array();
-        //TODO is there an efficient char search?
-        for (int i = startIndex; i < bufSize; i++) {
-            if (arrayContains(array, i, Global.LINE_SEPARATOR_BYTES))
-                return i;
+    private FileLine getMappedLine() throws IOException {
+        while (lineStartFileOffset < endOffset) {
+            long windowOffset = lineStartFileOffset - windowFileOffset;
+            if (buffer == null || windowOffset < 0 || windowOffset >= buffer.limit()) {
+                mapWindow(lineStartFileOffset);
+                continue;
+            }
+            int start = (int) windowOffset;
+            int nlPos = findNewLine(buffer, start, buffer.limit());
+            boolean isLastWindow = windowFileOffset + buffer.limit() >= fileSize;
+            if (nlPos < 0 && !isLastWindow && start > 0) {
+                //line crosses the end of the window, so we map a new one starting at the line
+                mapWindow(lineStartFileOffset);
+                continue;
+            }
+            long curStartOffset = lineStartFileOffset;
+            long lineLength;
+            if (nlPos >= 0) {
+                lineLength = nlPos - start;
+            } else if (isLastWindow) {
+                lineLength = buffer.limit() - start;
+            } else {
+                //line longer than a whole window
+                lineLength = findMappedLineEnd() - curStartOffset;
+            }
+            lineStartFileOffset += lineLength + 1;
+            if (windowFileOffset + start != curStartOffset) {
+                mapWindow(curStartOffset);
+                start = 0;
+            }
+            if (lineLength <= Global.BUFFER_SIZE) {
+                return new ByteLine(slice(start, (int) lineLength));
+            } else {
+                return new LongLine(fileChannel, slice(start, Global.BUFFER_SIZE), curStartOffset, lineLength);
+            }
         }
-        return -1;
+        return null;
+    }
+
+    /**
+     * @return a view of the mapping, which keeps it alive while the line is referenced
+     */
+    private ByteBuffer slice(int bufferOffset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(bufferOffset + length).position(bufferOffset);
+        return slice.slice();
     }
 
-    private static boolean arrayContains(byte[] haystack, int offset, byte[] needle) {
-        for (int i = 0; i < needle.length; i++) {
-            if (haystack[i + offset] != needle[i])
-                return false;
+    /**
+     * @return the file offset of the end of a line which does not fit in a single window
+     */
+    private long findMappedLineEnd() throws IOException {
+        long nextWindowOffset = windowFileOffset + buffer.limit();
+        while (nextWindowOffset < fileSize) {
+            mapWindow(nextWindowOffset);
+            int nlPos = findNewLine(buffer, 0, buffer.limit());
+            if (nlPos >= 0) {
+                return windowFileOffset + nlPos;
+            }
+            nextWindowOffset += buffer.limit();
         }
-        return true;
+        return fileSize;
+    }
+
+    private void mapWindow(long fileOffset) throws IOException {
+        long size = Math.min(mappedWindowSize, fileSize - fileOffset);
+        buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, fileOffset, size);
+        windowFileOffset = fileOffset;
+    }
+
+    /**
+     * Find the first new line in a buffer
+     *
+     * @return -1 if not found
+     */
+    private static int findNewLine(ByteBuffer aBuffer, int startIndex, int bufSize) {
+        return ByteScanner.indexOf(aBuffer, startIndex, bufSize, Global.LINE_SEPARATOR_BYTES);
     }
 
     @Override
     public void close() throws IOException {
+        if (source != null) {
+            closeReadAhead();
+        }
+        BlockCache.SHARED.invalidate(fileChannel);
         fileChannel.close();
     }
 }
@@ -0,0 +1,71 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the runs written by {@link BinaryRunWriter}. Lines are views of the read buffer, without scanning
+ * nor copying their bytes, so each one is only valid until the next one is read
+ */
+class BinaryRunReader implements RunReader {
+    private final RecordInput input;
+    private final boolean keyPrefixes;
+    private final BlobStore blobs;
+
+    /**
+     * @param keyPrefixes must match what the writer was told
+     * @param blobs       the store which the writer was given
+     */
+    BinaryRunReader(InputStream in, boolean keyPrefixes, BlobStore blobs) {
+        input = new RecordInput(in);
+        this.keyPrefixes = keyPrefixes;
+        this.blobs = blobs;
+    }
+
+    @Override
+    public FileLine getBigLine() throws IOException {
+        if (!input.hasMore()) {
+            return null;
+        }
+        long length = input.readVarLong();
+        boolean isBlob = false;
+        if (blobs != null) {
+            isBlob = (length & 1) != 0;
+            length >>>= 1;
+        }
+        long keyPrefix = keyPrefixes ? input.readLong() : 0;
+        if (isBlob) {
+            long offset = input.readVarLong();
+            ByteBuffer head = input.readSlice((int) input.readVarLong());
+            return blobs.get(head, offset, length);
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("can't read line of " + length + " bytes");
+        }
+        ByteBuffer bytes = input.readSlice((int) length);
+        return keyPrefixes ? new PrefixedLine(bytes, keyPrefix) : new ByteLine(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Line whose key prefix was read with it
+     */
+    private static class PrefixedLine extends ByteLine {
+        private final long keyPrefix;
+
+        PrefixedLine(ByteBuffer bytes, long keyPrefix) {
+            super(bytes);
+            this.keyPrefix = keyPrefix;
+        }
+
+        @Override
+        long getKeyPrefix() {
+            return keyPrefix;
+        }
+    }
+}
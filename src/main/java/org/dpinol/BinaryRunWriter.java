@@ -0,0 +1,75 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes each line as its {@link Varints} length, optionally followed by its 8 bytes key prefix
+ * (see {@link FileLine#getKeyPrefix()}), and its bytes. Readers don't need to look for line separators.
+ * With a {@link BlobStore}, the length is shifted left one bit, whose value tells if the line is stored in it.
+ * In that case, the bytes are replaced by the offset of the line in the store, and the length and bytes of its head
+ */
+class BinaryRunWriter implements RunWriter {
+    private final OutputStream out;
+    private final boolean keyPrefixes;
+    private final BlobStore blobs;
+    private final byte[] prefixBytes = new byte[Long.BYTES];
+    private final ByteBuffer prefixBuffer = ByteBuffer.wrap(prefixBytes);
+
+    /**
+     * @param out         it should be buffered. It's closed by {@link #close()}
+     * @param keyPrefixes if true, the key prefix of each line is stored, so that readers don't compute it
+     * @param blobs       if not null, {@link LongLine}s are stored in it, and only referenced from the run
+     */
+    BinaryRunWriter(OutputStream out, boolean keyPrefixes, BlobStore blobs) {
+        this.out = out;
+        this.keyPrefixes = keyPrefixes;
+        this.blobs = blobs;
+    }
+
+    @Override
+    public void write(FileLine line) throws IOException {
+        boolean isBlob = blobs != null && line instanceof LongLine;
+        writeLength(line.getNumBytes(), isBlob);
+        if (keyPrefixes) {
+            writeKeyPrefix(line.getKeyPrefix());
+        }
+        if (isBlob) {
+            LongLine blob = blobs.store((LongLine) line);
+            Varints.write(out, blob.getStartFileOffset());
+            ByteBuffer head = blob.getHead();
+            Varints.write(out, head.limit());
+            Bytes.write(head.duplicate(), out);
+        } else {
+            line.write(out);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        writeLength(length, false);
+        if (keyPrefixes) {
+            writeKeyPrefix(Bytes.prefix(ByteBuffer.wrap(bytes), offset, length));
+        }
+        out.write(bytes, offset, length);
+    }
+
+    private void writeLength(long length, boolean isBlob) throws IOException {
+        if (blobs == null) {
+            Varints.write(out, length);
+        } else {
+            Varints.write(out, length << 1 | (isBlob ? 1 : 0));
+        }
+    }
+
+    private void writeKeyPrefix(long keyPrefix) throws IOException {
+        prefixBuffer.putLong(0, keyPrefix);
+        out.write(prefixBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
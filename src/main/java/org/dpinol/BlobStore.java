@@ -0,0 +1,83 @@
+package org.dpinol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Temporary file where the bodies of long lines are written once, so that binary runs only store references to
+ * them (see {@link SortOptions#isLongLineBlobs()}). Runs and merges don't copy the bodies again,
+ * until the final merge copies them to the output with {@link FileChannel#transferTo}
+ */
+class BlobStore implements AutoCloseable {
+    private final File file;
+    private final FileChannel channel;
+    private long size = 0;
+
+    /**
+     * @return an empty store in a new file of tmpFolder, deleted on close
+     */
+    static BlobStore create(File tmpFolder) throws IOException {
+        File file = File.createTempFile("blobs", null, tmpFolder);
+        file.deleteOnExit();
+        return new BlobStore(file);
+    }
+
+    private BlobStore(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return a line of the store with the same bytes: the line itself if it's already stored, or a copy of it,
+     * appended to the store by the kernel
+     */
+    LongLine store(LongLine line) throws IOException {
+        if (line.getFileChannel() == channel) {
+            return line;
+        }
+        long offset;
+        //the transfer writes from the position of the channel
+        synchronized (this) {
+            offset = size;
+            channel.position(offset);
+            long count = line.getNumBytes();
+            long srcPosition = line.getStartFileOffset();
+            while (count > 0) {
+                long n = line.getFileChannel().transferTo(srcPosition, count, channel);
+                if (n <= 0) {
+                    throw new EOFException("storing " + count + " bytes from " + srcPosition);
+                }
+                srcPosition += n;
+                count -= n;
+            }
+            size += line.getNumBytes();
+        }
+        return get(line.getHead(), offset, line.getNumBytes());
+    }
+
+    /**
+     * @param head first bytes of the line, see {@link LongLine#LongLine}
+     * @return the line stored at offset
+     */
+    LongLine get(ByteBuffer head, long offset, long numBytes) throws IOException {
+        return new LongLine(channel, head, offset, numBytes);
+    }
+
+    /**
+     * @return bytes stored
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        BlockCache.SHARED.invalidate(channel);
+        channel.close();
+        file.delete();
+    }
+}
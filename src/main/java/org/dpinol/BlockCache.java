@@ -0,0 +1,138 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of fixed size blocks of files, shared by all the {@link LongLine}s, so that comparing lines which
+ * share long prefixes reads each block from disk once, instead of on every comparison.
+ * Returned blocks are never modified, so they can be read by any thread with absolute gets.
+ * Blocks at the end of a file are not cached, since the file may be growing, eg. a {@link BlobStore}.
+ * The owners of the channels must {@link #invalidate} them when they close them, so that their blocks don't
+ * keep memory nor the closed channels
+ */
+final class BlockCache {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final long DEFAULT_CAPACITY = 32 * 1024 * 1024;
+    static final BlockCache SHARED = new BlockCache(DEFAULT_CAPACITY);
+
+    private final long capacity;
+    private final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    /* so that looking up a cached block does not allocate */
+    private final ThreadLocal<Key> probes = ThreadLocal.withInitial(Key::new);
+    private long size = 0;
+    private long reads = 0;
+
+    /**
+     * @param capacity maximum bytes of the cached blocks
+     */
+    BlockCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the bytes of the file from blockIndex * {@link #BLOCK_SIZE}, from 0 to its limit, which is lower
+     * than the block size at the end of the file. Its position must not be changed
+     */
+    ByteBuffer getBlock(FileChannel channel, long blockIndex) throws IOException {
+        Key probe = probes.get();
+        probe.channel = channel;
+        probe.blockIndex = blockIndex;
+        ByteBuffer block;
+        synchronized (this) {
+            block = blocks.get(probe);
+        }
+        probe.channel = null;
+        if (block != null) {
+            return block;
+        }
+        block = read(channel, blockIndex);
+        synchronized (this) {
+            reads++;
+        }
+        if (block.limit() < BLOCK_SIZE) {
+            return block;
+        }
+        Key key = new Key();
+        key.channel = channel;
+        key.blockIndex = blockIndex;
+        synchronized (this) {
+            ByteBuffer previous = blocks.put(key, block);
+            if (previous != null) {
+                //read concurrently by another thread
+                size -= previous.capacity();
+            }
+            size += block.capacity();
+            Iterator<Map.Entry<Key, ByteBuffer>> eldest = blocks.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= eldest.next().getValue().capacity();
+                eldest.remove();
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Drops the cached blocks of the channel
+     */
+    synchronized void invalidate(FileChannel channel) {
+        Iterator<Map.Entry<Key, ByteBuffer>> entries = blocks.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = entries.next();
+            if (entry.getKey().channel == channel) {
+                size -= entry.getValue().capacity();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of cached blocks
+     */
+    synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     * @return number of blocks read from disk
+     */
+    synchronized long getReads() {
+        return reads;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long blockIndex) throws IOException {
+        long position = blockIndex * BLOCK_SIZE;
+        int length = (int) Math.max(0, Math.min(BLOCK_SIZE, channel.size() - position));
+        ByteBuffer block = ByteBuffer.allocate(length);
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                break;
+            }
+        }
+        block.flip();
+        return block;
+    }
+
+    private static final class Key {
+        FileChannel channel;
+        long blockIndex;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return channel == key.channel && blockIndex == key.blockIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(channel) + Long.hashCode(blockIndex);
+        }
+    }
+}
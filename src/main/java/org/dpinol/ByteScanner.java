@@ -0,0 +1,79 @@
+package org.dpinol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches bytes within a buffer testing 8 bytes per step, by reading them as a long
+ * and applying SWAR (SIMD within a register) bit tricks
+ */
+final class ByteScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_7_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+    private ByteScanner() {
+    }
+
+    /**
+     * @return position of the first occurrence of the needle between from (inclusive) and to (exclusive),
+     * or -1 if not found. A multi-byte needle must be fully contained in the range
+     */
+    static int indexOf(ByteBuffer buffer, int from, int to, byte[] needle) {
+        if (needle.length == 1) {
+            return indexOf(buffer, from, to, needle[0]);
+        }
+        int last = to - needle.length + 1;
+        int pos = from;
+        while (pos < last) {
+            pos = indexOf(buffer, pos, last, needle[0]);
+            if (pos < 0) {
+                return -1;
+            }
+            if (matches(buffer, pos, needle)) {
+                return pos;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of the first occurrence of b between from (inclusive) and to (exclusive),
+     * or -1 if not found
+     */
+    static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        long pattern = ONES * (b & 0xff);
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long found = zeroBytes(buffer.getLong(i) ^ pattern);
+            if (found != 0) {
+                int bit = bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found);
+                return i + (bit >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a word with the highest bit set in each byte of word which is 0, and all other bits cleared.
+     * Unlike the cheaper (x - ONES) & ~x trick, it never flags a non-zero byte, so the first flagged
+     * byte is correct with either byte order
+     */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOW_7_BITS) + LOW_7_BITS) | word | LOW_7_BITS);
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, byte[] needle) {
+        for (int i = 0; i < needle.length; i++) {
+            if (buffer.get(offset + i) != needle[i])
+                return false;
+        }
+        return true;
+    }
+}
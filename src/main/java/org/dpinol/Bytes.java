@@ -0,0 +1,126 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Helpers to handle lines as raw bytes.
+ * Bytes are compared as unsigned, which for valid UTF-8 gives the same order as comparing code points
+ */
+final class Bytes {
+    /**
+     * Bytes copied at once from direct buffers to streams which only take arrays
+     */
+    static final int SCRATCH_SIZE = 8 * 1024;
+    /* so that writing direct buffers does not allocate */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    private Bytes() {
+    }
+
+    /**
+     * Compares len bytes of a (starting at aOffset) with len bytes of b (starting at bOffset), 8 at a time
+     */
+    static int compare(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int len) {
+        int i = 0;
+        for (; i + Long.BYTES <= len; i += Long.BYTES) {
+            long wa = getBigEndianLong(a, aOffset + i);
+            long wb = getBigEndianLong(b, bOffset + i);
+            if (wa != wb) {
+                return Long.compareUnsigned(wa, wb);
+            }
+        }
+        for (; i < len; i++) {
+            int comp = (a.get(aOffset + i) & 0xff) - (b.get(bOffset + i) & 0xff);
+            if (comp != 0) {
+                return comp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return index of the first of len bytes which differs between a (starting at aOffset) and b (starting at
+     * bOffset), or len if all of them are equal
+     */
+    static int mismatch(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int len) {
+        int i = 0;
+        for (; i + Long.BYTES <= len; i += Long.BYTES) {
+            long diff = getBigEndianLong(a, aOffset + i) ^ getBigEndianLong(b, bOffset + i);
+            if (diff != 0) {
+                return i + Long.numberOfLeadingZeros(diff) / 8;
+            }
+        }
+        for (; i < len; i++) {
+            if (a.get(aOffset + i) != b.get(bOffset + i)) {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Compares the remaining bytes of both buffers, without changing their positions
+     */
+    static int compare(ByteBuffer a, ByteBuffer b) {
+        int len = Math.min(a.remaining(), b.remaining());
+        int comp = compare(a, a.position(), b, b.position(), len);
+        if (comp != 0) {
+            return comp;
+        }
+        return Integer.compare(a.remaining(), b.remaining());
+    }
+
+    /**
+     * @return the first 8 bytes (padded with zeros when shorter) of the length bytes starting at offset,
+     * as a big-endian long. Comparing two prefixes as unsigned longs gives the order of the lines, unless they
+     * are equal
+     */
+    static long prefix(ByteBuffer buffer, int offset, int length) {
+        if (length >= Long.BYTES) {
+            return getBigEndianLong(buffer, offset);
+        }
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix <<= 8;
+            if (i < length) {
+                prefix |= buffer.get(offset + i) & 0xff;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * @return the first 8 bytes of the remaining bytes of buffer, see {@link #prefix(ByteBuffer, int, int)}
+     */
+    static long prefix(ByteBuffer buffer) {
+        return prefix(buffer, buffer.position(), buffer.remaining());
+    }
+
+    private static long getBigEndianLong(ByteBuffer buffer, int offset) {
+        long word = buffer.getLong(offset);
+        return buffer.order() == ByteOrder.BIG_ENDIAN ? word : Long.reverseBytes(word);
+    }
+
+    /**
+     * Writes the remaining bytes of buffer, without changing its position.
+     * Direct buffers are copied in chunks through a scratch array of the thread, unless out takes buffers
+     */
+    static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else if (out instanceof AsyncChannelOutputStream) {
+            ((AsyncChannelOutputStream) out).write(buffer.duplicate());
+        } else {
+            byte[] scratch = SCRATCH.get();
+            ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                int n = Math.min(scratch.length, source.remaining());
+                source.get(scratch, 0, n);
+                out.write(scratch, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.dpinol;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Algorithms to sort the entries of a {@link ChunkStore}.
+ * The string specialized ones ({@link #RADIX} and {@link #MULTIKEY_QUICKSORT}) look at one byte per step,
+ * so that prefixes shared by many lines are not compared again and again.
+ * All of them fall back to comparisons for small ranges, and when reaching the end of the head of long lines.
+ * {@link #parallelSort} splits the work among the threads of a fork/join pool
+ */
+public enum ChunkSortEngine {
+    /**
+     * Three-way comparison quicksort
+     */
+    QUICKSORT {
+        @Override
+        void sort(ChunkStore store, long[] aux, int lo, int hi) {
+            ChunkQuickSort.sort(store, lo, hi - 1, 0);
+        }
+    },
+    /**
+     * Most significant digit first radix sort, with a bucket per byte value
+     */
+    RADIX {
+        @Override
+        void sort(ChunkStore store, long[] aux, int lo, int hi) {
+            new ChunkRadixSort(store, aux).sort(lo, hi, 0);
+        }
+
+        @Override
+        boolean usesAux() {
+            return true;
+        }
+    },
+    /**
+     * Bentley-Sedgewick multikey quicksort
+     */
+    MULTIKEY_QUICKSORT {
+        @Override
+        void sort(ChunkStore store, long[] aux, int lo, int hi) {
+            ChunkMultikeyQuickSort.sort(store, lo, hi - 1, 0);
+        }
+    };
+
+    /**
+     * Ranges smaller than this are sorted with insertion sort
+     */
+    static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /**
+     * Sorts entries from lo (inclusive) to hi (exclusive)
+     *
+     * @param aux at least as long as the used entries of the store, if {@link #usesAux()}. Only its entries from
+     *            lo to hi are used
+     */
+    abstract void sort(ChunkStore store, long[] aux, int lo, int hi);
+
+    /**
+     * @return true if {@link #sort} needs aux entries
+     */
+    boolean usesAux() {
+        return false;
+    }
+
+    /**
+     * Sorts ranges of the store with this engine in parallel, and merges them
+     *
+     * @param aux at least as long as the used entries of the store
+     */
+    void parallelSort(ChunkStore store, long[] aux, ForkJoinPool pool) {
+        int minLines = Math.max(ChunkParallelSort.MIN_LINES_PER_TASK,
+                store.size() / (pool.getParallelism() * ChunkParallelSort.TASKS_PER_THREAD));
+        pool.invoke(new ChunkParallelSort(this, store, aux, 0, store.size(), minLines));
+    }
+
+    /**
+     * Sorts entries from lo to hi (both inclusive), which share their first depth bytes
+     */
+    static void insertionSort(ChunkStore store, int lo, int hi, int depth) {
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && store.compare(j - 1, j, depth) > 0; j--) {
+                store.swap(j - 1, j);
+            }
+        }
+    }
+}
+
+/**
+ * Quicksort with three-way partitioning, so that repeated lines do not degrade it
+ */
+class ChunkQuickSort {
+
+    /**
+     * Sorts entries from lo to hi (both inclusive), which share their first depth bytes
+     */
+    static void sort(ChunkStore store, int lo, int hi, int depth) {
+        while (hi - lo >= ChunkSortEngine.INSERTION_SORT_THRESHOLD) {
+            store.swap(lo, medianOfThree(store, lo, lo + (hi - lo) / 2, hi, depth));
+            int lt = lo;
+            int gt = hi;
+            int i = lo + 1;
+            //entries in lo..lt-1 are smaller than the pivot, and lt..i-1 are equal to it
+            while (i <= gt) {
+                int comp = store.compare(i, lt, depth);
+                if (comp < 0) {
+                    store.swap(lt++, i++);
+                } else if (comp > 0) {
+                    store.swap(i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            //recurse on the smaller side to bound the stack depth
+            if (lt - lo < hi - gt) {
+                sort(store, lo, lt - 1, depth);
+                lo = gt + 1;
+            } else {
+                sort(store, gt + 1, hi, depth);
+                hi = lt - 1;
+            }
+        }
+        ChunkSortEngine.insertionSort(store, lo, hi, depth);
+    }
+
+    private static int medianOfThree(ChunkStore store, int a, int b, int c, int depth) {
+        if (store.compare(a, b, depth) < 0) {
+            return store.compare(b, c, depth) < 0 ? b : (store.compare(a, c, depth) < 0 ? c : a);
+        } else {
+            return store.compare(a, c, depth) < 0 ? a : (store.compare(b, c, depth) < 0 ? c : b);
+        }
+    }
+}
+
+/**
+ * Distributes the entries in 257 buckets (end of line, and one per byte value) according to the byte at the
+ * current depth, and sorts each bucket recursively on the next byte
+ */
+class ChunkRadixSort {
+    private static final int NUM_BUCKETS = 257;
+    private final ChunkStore store;
+    private final long[] aux;
+    /* bucket starts of each depth, which are needed while the buckets are sorted on the next bytes */
+    private final int[][] startsByDepth = new int[FileLine.LENGTH_THRESHOLD][];
+    private final int[] next = new int[NUM_BUCKETS + 1];
+
+    /**
+     * @param aux at least as long as the used entries of the store. Entries from lo to hi are used to sort
+     *            the range lo..hi-1
+     */
+    ChunkRadixSort(ChunkStore store, long[] aux) {
+        this.store = store;
+        this.aux = aux;
+    }
+
+    /**
+     * Sorts entries from lo (inclusive) to hi (exclusive), which share their first depth bytes
+     */
+    void sort(int lo, int hi, int depth) {
+        if (hi - lo < ChunkSortEngine.INSERTION_SORT_THRESHOLD) {
+            ChunkSortEngine.insertionSort(store, lo, hi - 1, depth);
+            return;
+        }
+        if (depth >= FileLine.LENGTH_THRESHOLD) {
+            ChunkQuickSort.sort(store, lo, hi - 1, depth);
+            return;
+        }
+        int[] starts = startsByDepth[depth];
+        if (starts == null) {
+            starts = startsByDepth[depth] = new int[NUM_BUCKETS + 1];
+        } else {
+            Arrays.fill(starts, 0);
+        }
+        for (int i = lo; i < hi; i++) {
+            starts[store.byteAt(i, depth) + 2]++;
+        }
+        for (int b = 1; b <= NUM_BUCKETS; b++) {
+            starts[b] += starts[b - 1];
+        }
+        //starts[b + 1] is now the start of bucket b (with -1 for end of line)
+        long[] entries = store.getEntries();
+        System.arraycopy(starts, 0, next, 0, next.length);
+        for (int i = lo; i < hi; i++) {
+            int dest = lo + next[store.byteAt(i, depth) + 1]++;
+            System.arraycopy(entries, i * ChunkStore.ENTRY_LONGS, aux, dest * ChunkStore.ENTRY_LONGS,
+                    ChunkStore.ENTRY_LONGS);
+        }
+        System.arraycopy(aux, lo * ChunkStore.ENTRY_LONGS, entries, lo * ChunkStore.ENTRY_LONGS,
+                (hi - lo) * ChunkStore.ENTRY_LONGS);
+        //lines in the end of line bucket are equal. Long lines never end before LENGTH_THRESHOLD
+        int bucketStart = lo + starts[1];
+        for (int b = 1; b < NUM_BUCKETS; b++) {
+            int bucketEnd = lo + starts[b + 1];
+            if (bucketEnd - bucketStart > 1) {
+                sort(bucketStart, bucketEnd, depth + 1);
+            }
+            bucketStart = bucketEnd;
+        }
+    }
+}
+
+/**
+ * Three-way partitions the entries on the byte at the current depth, and only the entries equal to the pivot
+ * byte are sorted on the next byte
+ */
+class ChunkMultikeyQuickSort {
+
+    /**
+     * Sorts entries from lo to hi (both inclusive), which share their first depth bytes
+     */
+    static void sort(ChunkStore store, int lo, int hi, int depth) {
+        while (hi - lo >= ChunkSortEngine.INSERTION_SORT_THRESHOLD) {
+            if (depth >= FileLine.LENGTH_THRESHOLD) {
+                ChunkQuickSort.sort(store, lo, hi, depth);
+                return;
+            }
+            store.swap(lo, medianOfThree(store, lo, lo + (hi - lo) / 2, hi, depth));
+            int pivot = store.byteAt(lo, depth);
+            int lt = lo;
+            int gt = hi;
+            int i = lo + 1;
+            while (i <= gt) {
+                int b = store.byteAt(i, depth);
+                if (b < pivot) {
+                    store.swap(lt++, i++);
+                } else if (b > pivot) {
+                    store.swap(i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            sort(store, lo, lt - 1, depth);
+            sort(store, gt + 1, hi, depth);
+            if (pivot < 0) {
+                //all of them ended, so they are equal. Long lines never end before LENGTH_THRESHOLD
+                return;
+            }
+            lo = lt;
+            hi = gt;
+            depth++;
+        }
+        ChunkSortEngine.insertionSort(store, lo, hi, depth);
+    }
+
+    private static int medianOfThree(ChunkStore store, int a, int b, int c, int depth) {
+        int va = store.byteAt(a, depth);
+        int vb = store.byteAt(b, depth);
+        int vc = store.byteAt(c, depth);
+        if (va < vb) {
+            return vb < vc ? b : (va < vc ? c : a);
+        } else {
+            return va < vc ? a : (vb < vc ? c : b);
+        }
+    }
+}
+
+/**
+ * Merge sort whose halves are sorted by parallel tasks, down to ranges small enough to be sorted by an engine
+ */
+class ChunkParallelSort extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Ranges smaller than this are not split, since the cost of the task would not pay off
+     */
+    static final int MIN_LINES_PER_TASK = 16 * 1024;
+    /**
+     * Ranges per pool thread, so that threads which finish early steal the remaining ones
+     */
+    static final int TASKS_PER_THREAD = 4;
+
+    private final ChunkSortEngine engine;
+    private final ChunkStore store;
+    private final long[] aux;
+    private final int lo;
+    private final int hi;
+    private final int minLines;
+
+    /**
+     * @param aux at least as long as the used entries of the store
+     */
+    ChunkParallelSort(ChunkSortEngine engine, ChunkStore store, long[] aux, int lo, int hi, int minLines) {
+        this.engine = engine;
+        this.store = store;
+        this.aux = aux;
+        this.lo = lo;
+        this.hi = hi;
+        this.minLines = minLines;
+    }
+
+    @Override
+    protected void compute() {
+        if (hi - lo <= minLines) {
+            engine.sort(store, aux, lo, hi);
+            return;
+        }
+        int mid = lo + (hi - lo) / 2;
+        invokeAll(new ChunkParallelSort(engine, store, aux, lo, mid, minLines),
+                new ChunkParallelSort(engine, store, aux, mid, hi, minLines));
+        merge(mid);
+    }
+
+    /**
+     * Merges the sorted ranges lo..mid-1 and mid..hi-1 through the aux entries
+     */
+    private void merge(int mid) {
+        if (store.compare(mid - 1, mid) <= 0) {
+            return;
+        }
+        long[] entries = store.getEntries();
+        int i = lo;
+        int j = mid;
+        int dest = lo * ChunkStore.ENTRY_LONGS;
+        while (i < mid && j < hi) {
+            int from = store.compare(i, j) <= 0 ? i++ : j++;
+            System.arraycopy(entries, from * ChunkStore.ENTRY_LONGS, aux, dest, ChunkStore.ENTRY_LONGS);
+            dest += ChunkStore.ENTRY_LONGS;
+        }
+        int from = i < mid ? i : j;
+        int remaining = i < mid ? mid - i : hi - j;
+        System.arraycopy(entries, from * ChunkStore.ENTRY_LONGS, aux, dest, remaining * ChunkStore.ENTRY_LONGS);
+        System.arraycopy(aux, lo * ChunkStore.ENTRY_LONGS, entries, lo * ChunkStore.ENTRY_LONGS,
+                (hi - lo) * ChunkStore.ENTRY_LONGS);
+    }
+}
@@ -1,48 +1,84 @@
 package org.dpinol;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * They get lines which are stored on a heap, and when it has more than {@link BigFileSorter#LINES_PER_SORTER} lines
- * they are flushed. The flush is done on a different thread
+ * They get lines which are packed in a {@link ChunkStore}, and when it holds more than its share of the
+ * memory budget the lines are sorted and flushed. The flush is done on a different thread.
+ * With {@link SortOptions#isReplacementSelection()}, runs are generated by a {@link ReplacementSelector} instead.
+ * Finished runs are handed to a {@link RunCascade}
  * Created by dani on 20/09/16.
  */
 class ChunkSorter implements AutoCloseable {
     private final File tmpFolder;
-    private final ArrayBlockingQueue<LineBucket> queue;
+    private final RingBuffer<LineBucket> queue;
     private final String id;
     private final ExecutorService executorService;
-    private SimpleHeap<FileLine> heap = new SimpleHeap<>(BigFileSorter.LINES_PER_SORTER);
-    private final List<File> files = new ArrayList<>();
-    private final Flusher flusher;
-    private int waitCounter = 0;
+    private final ChunkStore store;
+    private final ChunkSortEngine sortEngine;
+    private final long runBytes;
+    private final SortOptions options;
+    private final RunCascade runs;
+    private final Runnable flusher;
+    private volatile Throwable failure;
 
     ChunkSorter(File tmpFolder, String id, ExecutorService executorService,
-                ArrayBlockingQueue<LineBucket> queue) throws IOException {
+                RingBuffer<LineBucket> queue, RunCascade runs, SortOptions options, long runBytes)
+            throws IOException {
         this.tmpFolder = tmpFolder;
+        this.runBytes = runBytes;
+        this.options = options;
+        sortEngine = options.getSortEngine();
         this.queue = queue;
+        this.runs = runs;
         tmpFolder.deleteOnExit();
         this.id = id;
         this.executorService = executorService;
-        flusher = new Flusher();
+        if (options.isReplacementSelection()) {
+            store = null;
+            flusher = new ReplacementSelector();
+        } else {
+            store = new ChunkStore(BigFileSorter.INITIAL_LINES_PER_SORTER, options.isOffHeapSlabs());
+            flusher = new Flusher();
+        }
         executorService.submit(flusher);
     }
 
-    public List<File> getFiles() {
-        return files;
-    }
-
-
+    /**
+     * Must be called once its thread has ended
+     *
+     * @throws IOException if it failed generating runs
+     */
     @Override
     public void close() throws IOException, InterruptedException {
         //flusher.shutDown = true;
 //        flusher.join();
-        Global.log("joined "  + flusher + " after " + waitCounter + " waits");
+        Global.log("joined "  + flusher);
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("Sorter " + id + " failed", failure);
+        }
+    }
+
+    /**
+     * Keeps the error for {@link #close()}, and cancels the queue so that its reader stops instead of waiting
+     * for a sorter which is gone
+     */
+    private void fail(Throwable e) {
+        System.err.println("Error in ChunkSorter " + id + ": " + e);
+        e.printStackTrace();
+        failure = e;
+        queue.cancel();
+    }
+
+    /**
+     * @return a new file for a run, which is deleted once it's merged
+     */
+    private File createRunFile() throws IOException {
+        return File.createTempFile("sort_tmp", id, tmpFolder);
     }
 
     private class Flusher extends Thread {
@@ -51,52 +87,175 @@ class ChunkSorter implements AutoCloseable {
 
         @Override
         public void run() {
-
-            while (!isDone()) {
-                try {
-                    fillHeap();
-                    tmpFile = File.createTempFile("sort_tmp", id, tmpFolder);
-                    tmpFile.deleteOnExit();
-                    files.add(tmpFile);
-                    flush();
-                } catch (Exception e) {
-                    System.err.println("Error writing ChunkSorter to " + tmpFile + ": " + e);
-                    e.printStackTrace();
+            boolean more = true;
+            try {
+                while (more) {
+                    more = fillStore();
+                    if (!store.isEmpty()) {
+                        tmpFile = createRunFile();
+                        flush();
+                    }
+                }
+            } catch (Throwable e) {
+                //the lines held in the store are no longer needed
+                store.clear();
+                if (tmpFile != null) {
+                    tmpFile.delete();
                 }
+                fail(e);
             }
             Global.log("done "  + flusher);
         }
 
-        boolean isDone() {
-            return queue.isEmpty() && executorService.isShutdown();
+        private long getMemoryUsed() {
+            return store.getMemoryUsed(sortEngine, options.isParallelChunkSort());
         }
 
-        void fillHeap() throws InterruptedException {
-            while (heap.size() < BigFileSorter.LINES_PER_SORTER && !isDone()) {
-                LineBucket bucket = queue.poll(10, TimeUnit.MILLISECONDS);
-                if (bucket != null) {
-                    for (FileLine fileLine : bucket) {
-                        heap.add(fileLine);
-                    }
-                } else {
-                    waitCounter++;
+        /**
+         * @return false if the queue has been closed and drained
+         */
+        boolean fillStore() throws IOException {
+            //an empty store always takes a bucket, so that the job goes on even if runBytes is too small
+            while (store.isEmpty() || getMemoryUsed() < runBytes) {
+                LineBucket bucket = queue.take();
+                if (bucket == null) {
+                    return false;
+                }
+                for (FileLine fileLine : bucket) {
+                    store.add(fileLine);
                 }
             }
+            return true;
         }
 
 
         void flush() throws Exception {
 //            Global.log("Flushing file " + tmpFile);
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile))) {
-                FileLine line;
-                while ((line = heap.poll()) != null) {
-                    line.write(writer);
-                    writer.newLine();
+            if (options.isParallelChunkSort()) {
+                store.parallelSort(sortEngine, ForkJoinPool.commonPool());
+            } else {
+                store.sort(sortEngine);
+            }
+            try (RunWriter writer = RunFiles.createWriter(tmpFile, options)) {
+                store.writeTo(writer);
+            }
+            store.clear();
+            runs.add(tmpFile);
+            tmpFile = null;
+        }
+    }
+
+    /**
+     * Replacement selection: the heap is kept full, and its minimum line is written to the current run
+     * whenever a new line arrives. Lines smaller than the last one written can't go to the current run,
+     * so they are tagged for the next one, which starts when no line of the current run is left in the heap.
+     * On random input runs are about twice the memory size, and nearly sorted input produces a single run
+     */
+    private class ReplacementSelector implements Runnable {
+        /**
+         * Estimated memory used by each line besides its bytes
+         */
+        private static final int LINE_OVERHEAD = 64;
+
+        private final SimpleHeap<RunLine> heap =
+                new SimpleHeap<>((int) Math.min(Integer.MAX_VALUE - 8, runBytes / LINE_OVERHEAD));
+        private long heapBytes = 0;
+        private int currentRun = -1;
+        private FileLine lastWritten;
+        private RunWriter out;
+        private File outFile;
+
+        @Override
+        public void run() {
+            try {
+                LineBucket bucket;
+                while ((bucket = queue.take()) != null) {
+                    for (FileLine fileLine : bucket) {
+                        add(fileLine);
+                    }
+                }
+                while (!heap.isEmpty()) {
+                    writeMin();
+                }
+                closeRun();
+            } catch (Throwable e) {
+                discardRun();
+                fail(e);
+            }
+            Global.log("done " + this);
+        }
+
+        private void add(FileLine line) throws IOException {
+            while (!heap.isEmpty() && (heapBytes >= runBytes || heap.isFull())) {
+                writeMin();
+            }
+            boolean fitsCurrentRun = lastWritten == null || line.compareTo(lastWritten) >= 0;
+            heap.add(new RunLine(fitsCurrentRun ? Math.max(currentRun, 0) : currentRun + 1, line));
+            heapBytes += cost(line);
+        }
+
+        private void writeMin() throws IOException {
+            RunLine min = heap.poll();
+            if (min.run != currentRun) {
+                closeRun();
+                outFile = createRunFile();
+                out = RunFiles.createWriter(outFile, options);
+                currentRun = min.run;
+            }
+            out.write(min.line);
+            lastWritten = min.line;
+            heapBytes -= cost(min.line);
+        }
+
+        private void closeRun() throws IOException {
+            if (out != null) {
+                out.close();
+                runs.add(outFile);
+                out = null;
+            }
+        }
+
+        /**
+         * Closes and deletes the run being written, after a failure
+         */
+        private void discardRun() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Global.log("Error closing " + outFile + ": " + e);
                 }
+                outFile.delete();
+                out = null;
             }
+        }
 
+        /**
+         * Only the head of long lines is held in memory
+         */
+        private long cost(FileLine line) {
+            return Math.min(line.getNumBytes(), FileLine.LENGTH_THRESHOLD) + LINE_OVERHEAD;
         }
     }
 
+    /**
+     * A line tagged with the run where it must be written. Lines of earlier runs go first
+     */
+    private static class RunLine implements Comparable<RunLine> {
+        final int run;
+        final FileLine line;
 
+        RunLine(int run, FileLine line) {
+            this.run = run;
+            this.line = line;
+        }
+
+        @Override
+        public int compareTo(RunLine o) {
+            if (run != o.run) {
+                return Integer.compare(run, o.run);
+            }
+            return line.compareTo(o.line);
+        }
+    }
 }
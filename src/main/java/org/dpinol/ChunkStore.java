@@ -0,0 +1,262 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the lines of a chunk packed in big slabs of bytes, which are reused after {@link #clear()},
+ * instead of one object per line.
+ * Each line is referenced by an entry of {@link #ENTRY_LONGS} longs in a primitive array, which is what gets sorted:
+ * <ul>
+ * <li>slab index (high 32 bits) and offset within the slab (low 32 bits)</li>
+ * <li>index of its {@link LongLine} plus one, or 0 for short lines (high 32 bits),
+ * and number of bytes stored in the slab (low 32 bits)</li>
+ * <li>first 8 bytes of the line as a big-endian long, so that most comparisons are settled with a
+ * primitive compare, without reading the slabs</li>
+ * </ul>
+ * Only the head of a {@link LongLine} is stored in the slab, the object is kept to access the rest of the line.
+ * Entries are sorted by a {@link ChunkSortEngine}
+ */
+class ChunkStore {
+    static final int SLAB_SIZE = 1024 * 1024;
+    static final int ENTRY_LONGS = 3;
+    private static final long LOW_32_BITS = 0xffffffffL;
+
+    private final boolean offHeap;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    /* to read direct slabs without allocating */
+    private final List<ByteBuffer> slabViews = new ArrayList<>();
+    private final byte[] scratch = new byte[FileLine.LENGTH_THRESHOLD];
+    private final List<FileLine> longLines = new ArrayList<>();
+    private int currentSlab = -1;
+    private long[] entries;
+    /* to merge the entries in parallelSort and to distribute them in radix sorts, kept for the next chunks
+    like the slabs */
+    private long[] aux = new long[0];
+    private int size = 0;
+
+    /**
+     * @param initialLines number of lines for which entries are initially allocated
+     * @param offHeap      if true, slabs are allocated out of the java heap
+     */
+    ChunkStore(int initialLines, boolean offHeap) {
+        this.offHeap = offHeap;
+        entries = new long[Math.max(1, initialLines) * ENTRY_LONGS];
+    }
+
+    void add(FileLine line) throws IOException {
+        Iterator<ByteBuffer> iterator = line.getByteIterator();
+        ByteBuffer head = iterator.hasNext() ? iterator.next() : ByteBuffer.allocate(0);
+        int headLength = head.remaining();
+        ByteBuffer slab = slabFor(headLength);
+        int offset = slab.position();
+        slab.put(head.duplicate());
+
+        long longLineRef = 0;
+        if (line.getNumBytes() > headLength) {
+            longLines.add(line);
+            longLineRef = longLines.size();
+        }
+        if ((size + 1) * ENTRY_LONGS > entries.length) {
+            long[] newEntries = new long[entries.length * 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            entries = newEntries;
+        }
+        int e = size * ENTRY_LONGS;
+        entries[e] = ((long) currentSlab << 32) | offset;
+        entries[e + 1] = (longLineRef << 32) | headLength;
+        entries[e + 2] = Bytes.prefix(slab, offset, headLength);
+        size++;
+    }
+
+    /**
+     * @return the slab where numBytes should be appended, after moving to the next one if required
+     */
+    private ByteBuffer slabFor(int numBytes) {
+        if (currentSlab < 0 || slabs.get(currentSlab).remaining() < numBytes) {
+            currentSlab++;
+            if (currentSlab == slabs.size()) {
+                ByteBuffer slab = offHeap ? ByteBuffer.allocateDirect(SLAB_SIZE) : ByteBuffer.allocate(SLAB_SIZE);
+                slabs.add(slab);
+                slabViews.add(slab.duplicate());
+            }
+        }
+        return slabs.get(currentSlab);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return bytes held by the slabs and the entries currently in use, which is 0 when it's empty,
+     * even if the entries grown for previous chunks are kept
+     */
+    long getMemoryUsed() {
+        return (long) (currentSlab + 1) * SLAB_SIZE + (long) size * ENTRY_LONGS * Long.BYTES;
+    }
+
+    /**
+     * @return {@link #getMemoryUsed()}, plus the aux entries which sorting the lines in use with the engine
+     * needs, or which are held from previous chunks
+     * @param parallel true if sorted with {@link #parallelSort}
+     */
+    long getMemoryUsed(ChunkSortEngine engine, boolean parallel) {
+        if (!parallel && !engine.usesAux()) {
+            return getMemoryUsed();
+        }
+        return getMemoryUsed() + (long) Math.max(aux.length, size * ENTRY_LONGS) * Long.BYTES;
+    }
+
+    /**
+     * Forgets all lines, keeping the slabs for reuse
+     */
+    void clear() {
+        for (ByteBuffer slab : slabs) {
+            slab.clear();
+        }
+        currentSlab = -1;
+        longLines.clear();
+        size = 0;
+    }
+
+    void sort(ChunkSortEngine engine) {
+        if (engine.usesAux()) {
+            growAux();
+        }
+        engine.sort(this, aux, 0, size);
+    }
+
+    /**
+     * Sorts with the threads of the pool, see {@link ChunkSortEngine#parallelSort}
+     */
+    void parallelSort(ChunkSortEngine engine, ForkJoinPool pool) {
+        growAux();
+        engine.parallelSort(this, aux, pool);
+    }
+
+    private void growAux() {
+        if (aux.length < size * ENTRY_LONGS) {
+            aux = new long[size * ENTRY_LONGS];
+        }
+    }
+
+    /**
+     * Writes the lines in their current order, each followed by a line separator
+     */
+    void writeTo(OutputStream out) throws IOException {
+        writeTo(new TextRunWriter(out));
+    }
+
+    /**
+     * Writes the lines in their current order. The writer is not closed
+     */
+    void writeTo(RunWriter writer) throws IOException {
+        for (int i = 0; i < size; i++) {
+            int e = i * ENTRY_LONGS;
+            int longLineRef = (int) (entries[e + 1] >>> 32);
+            if (longLineRef > 0) {
+                writer.write(longLines.get(longLineRef - 1));
+            } else {
+                int slabIndex = (int) (entries[e] >>> 32);
+                int offset = (int) (entries[e] & LOW_32_BITS);
+                int length = (int) (entries[e + 1] & LOW_32_BITS);
+                ByteBuffer slab = slabs.get(slabIndex);
+                if (slab.hasArray()) {
+                    writer.write(slab.array(), slab.arrayOffset() + offset, length);
+                } else {
+                    ByteBuffer view = slabViews.get(slabIndex);
+                    view.limit(offset + length).position(offset);
+                    view.get(scratch, 0, length);
+                    writer.write(scratch, 0, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the lines referenced by the entries at positions i and j
+     */
+    int compare(int i, int j) {
+        return compare(i, j, 0);
+    }
+
+    /**
+     * Compares the lines referenced by the entries at positions i and j, which are known to share their first
+     * depth bytes
+     */
+    int compare(int i, int j, int depth) {
+        int ei = i * ENTRY_LONGS;
+        int ej = j * ENTRY_LONGS;
+        int lengthI = (int) (entries[ei + 1] & LOW_32_BITS);
+        int lengthJ = (int) (entries[ej + 1] & LOW_32_BITS);
+        if (depth < Long.BYTES) {
+            long prefixI = entries[ei + 2];
+            long prefixJ = entries[ej + 2];
+            if (prefixI != prefixJ) {
+                return Long.compareUnsigned(prefixI, prefixJ);
+            }
+            depth = Math.min(Long.BYTES, Math.min(lengthI, lengthJ));
+        }
+        if (depth < Math.min(lengthI, lengthJ)) {
+            int comp = Bytes.compare(slabs.get((int) (entries[ei] >>> 32)), (int) (entries[ei] & LOW_32_BITS) + depth,
+                    slabs.get((int) (entries[ej] >>> 32)), (int) (entries[ej] & LOW_32_BITS) + depth,
+                    Math.min(lengthI, lengthJ) - depth);
+            if (comp != 0) {
+                return comp;
+            }
+        }
+        int longI = (int) (entries[ei + 1] >>> 32);
+        int longJ = (int) (entries[ej + 1] >>> 32);
+        if (longI > 0 && longJ > 0) {
+            //their heads are equal, so only the rest of the lines is compared
+            return longLines.get(longI - 1).compareFrom(longLines.get(longJ - 1), Math.min(lengthI, lengthJ));
+        }
+        //a short line which is a prefix of a long line is smaller, since long lines are longer than any short line
+        if (longI > 0 || longJ > 0) {
+            return longI > 0 ? 1 : -1;
+        }
+        return Integer.compare(lengthI, lengthJ);
+    }
+
+    /**
+     * @return the unsigned byte at position depth of the line at position i, or -1 if the line is shorter.
+     * depth must be lower than {@link FileLine#LENGTH_THRESHOLD}, since only the head of long lines is stored
+     */
+    int byteAt(int i, int depth) {
+        int e = i * ENTRY_LONGS;
+        if (depth >= (int) (entries[e + 1] & LOW_32_BITS)) {
+            return -1;
+        }
+        if (depth < Long.BYTES) {
+            return (int) (entries[e + 2] >>> ((Long.BYTES - 1 - depth) * 8)) & 0xff;
+        }
+        return slabs.get((int) (entries[e] >>> 32)).get((int) (entries[e] & LOW_32_BITS) + depth) & 0xff;
+    }
+
+    void swap(int i, int j) {
+        int ei = i * ENTRY_LONGS;
+        int ej = j * ENTRY_LONGS;
+        for (int k = 0; k < ENTRY_LONGS; k++) {
+            long tmp = entries[ei + k];
+            entries[ei + k] = entries[ej + k];
+            entries[ej + k] = tmp;
+        }
+    }
+
+    /**
+     * @return the entries, so that sort engines can move them in bulk. Only the first {@link #size()} are in use
+     */
+    long[] getEntries() {
+        return entries;
+    }
+}
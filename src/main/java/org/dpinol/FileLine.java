@@ -1,17 +1,21 @@
 package org.dpinol;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 
 import static org.dpinol.Global.log;
 
 /**
  * It gives access to a line parsed from a file. If shorter than {@link #LENGTH_THRESHOLD},
- * the whole text is held in a {@link ShortLine}. Otherwise, a {@link LongLine} holds the
+ * the whole text is held in a {@link ByteLine}. Otherwise, a {@link LongLine} holds the
  * position of the text within the file.
+ * Lines are compared as unsigned bytes, see {@link Bytes}
  */
 public abstract class FileLine implements Comparable<FileLine> {
 
@@ -22,30 +26,63 @@ public abstract class FileLine implements Comparable<FileLine> {
 
     @Override
     public int compareTo(FileLine o) {
+        return compareFrom(o, 0);
+    }
+
+    /**
+     * Compares both lines chunk by chunk (see {@link #getChunk(long)}), without allocating
+     *
+     * @param offset both lines are known to be equal before it
+     */
+    int compareFrom(FileLine o, long offset) {
         try {
-            int comp;
-            Iterator<String> i1 = getIterator();
-            Iterator<String> i2 = o.getIterator();
-            do {
-                if (!i1.hasNext() && !i2.hasNext()) {
-                    return 0;
-                } else if (!i1.hasNext() && i2.hasNext()) {
-                    return -1;
-                } else if (i1.hasNext() && !i2.hasNext()) {
-                    return 1;
+            long length = Math.min(getNumBytes(), o.getNumBytes());
+            while (offset < length) {
+                ByteBuffer chunk1 = getChunk(offset);
+                int index1 = getChunkIndex(offset);
+                ByteBuffer chunk2 = o.getChunk(offset);
+                int index2 = o.getChunkIndex(offset);
+                int len = (int) Math.min(length - offset, Math.min(chunk1.limit() - index1, chunk2.limit() - index2));
+                if (len <= 0) {
+                    throw new IOException("line truncated at " + offset);
                 }
-                String l1 = i1.next();
-                String l2 = i2.next();
-                comp = l1.compareTo(l2);
+                int comp = Bytes.compare(chunk1, index1, chunk2, index2, len);
                 if (comp != 0) {
                     return comp;
                 }
-            } while (true);
+                offset += len;
+            }
+            return Long.compare(getNumBytes(), o.getNumBytes());
         } catch (IOException e) {
             throw new RuntimeException("comparing " + this + " to " + o, e);
         }
     }
 
+    /**
+     * @return the first 8 bytes of the line as a big-endian long, see {@link Bytes#prefix(ByteBuffer, int, int)}
+     */
+    long getKeyPrefix() throws IOException {
+        if (getNumBytes() == 0) {
+            return 0;
+        }
+        ByteBuffer chunk = getChunk(0);
+        int index = getChunkIndex(0);
+        return Bytes.prefix(chunk, index, (int) Math.min(Long.BYTES, Math.min(getNumBytes(), chunk.limit() - index)));
+    }
+
+    /**
+     * @param offset within the line, lower than its length
+     * @return a buffer with the byte at offset in position {@link #getChunkIndex(long)}, followed by the next bytes
+     * of the line up to the limit of the buffer. Bytes after the end of the line may follow.
+     * Its position must not be used nor changed
+     */
+    abstract ByteBuffer getChunk(long offset) throws IOException;
+
+    /**
+     * @return where the byte at offset is in the buffer returned by {@link #getChunk(long)}
+     */
+    abstract int getChunkIndex(long offset);
+
     /**
      *
      * @return an iterator to access the line in chunks of maximum {@link #LENGTH_THRESHOLD}
@@ -53,6 +90,12 @@ public abstract class FileLine implements Comparable<FileLine> {
      */
     abstract public Iterator<String> getIterator() throws IOException;
 
+    /**
+     * @return an iterator to access the raw bytes of the line in chunks of maximum {@link #LENGTH_THRESHOLD}.
+     * A returned buffer may be reused by the following call to next()
+     */
+    abstract Iterator<ByteBuffer> getByteIterator() throws IOException;
+
 
     public void write(Writer writer) throws IOException {
         Iterator<String> iterator = getIterator();
@@ -60,10 +103,20 @@ public abstract class FileLine implements Comparable<FileLine> {
             writer.write(iterator.next());
         }
     }
+
+    /**
+     * Writes the raw bytes of the line, without any charset conversion
+     */
+    public void write(OutputStream out) throws IOException {
+        Iterator<ByteBuffer> iterator = getByteIterator();
+        while (iterator.hasNext()) {
+            Bytes.write(iterator.next(), out);
+        }
+    }
 }
 
 /**
- * Whole line is held in memory
+ * Whole line is held in memory as a String
  */
 class ShortLine extends FileLine {
     private String line;
@@ -82,7 +135,7 @@ class ShortLine extends FileLine {
         if (o instanceof ShortLine) {
             return line.compareTo(((ShortLine) o).line);
         }
-        return 0;
+        return super.compareTo(o);
     }
 
 
@@ -103,15 +156,139 @@ class ShortLine extends FileLine {
             }
         };
     }
+
+    @Override
+    Iterator<ByteBuffer> getByteIterator() {
+        return new SingleBufferIterator(ByteBuffer.wrap(line.getBytes()));
+    }
+
+    @Override
+    ByteBuffer getChunk(long offset) {
+        return ByteBuffer.wrap(line.getBytes());
+    }
+
+    @Override
+    int getChunkIndex(long offset) {
+        return (int) offset;
+    }
 } //ShortLine
 
 /**
- * Holds the information to quickly read a text line from a file
+ * Whole line is held in memory with its raw bytes, which are never decoded
+ */
+class ByteLine extends FileLine {
+    /**
+     * From position 0 to limit. It may be a slice of a mapped file
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * @param bytes the line is read from its position to its limit. It must not be modified afterwards
+     */
+    ByteLine(ByteBuffer bytes) {
+        this.bytes = bytes.slice();
+    }
+
+    ByteLine(byte[] bytes) {
+        this.bytes = ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public long getNumBytes() {
+        return bytes.limit();
+    }
+
+    /**
+     * @return the bytes of the line, from position 0 to the limit. They must not be modified
+     */
+    ByteBuffer getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int compareTo(FileLine o) {
+        if (o instanceof ByteLine) {
+            return Bytes.compare(bytes, ((ByteLine) o).bytes);
+        }
+        return super.compareTo(o);
+    }
+
+    @Override
+    long getKeyPrefix() {
+        return Bytes.prefix(bytes, 0, bytes.limit());
+    }
+
+    @Override
+    public Iterator<String> getIterator() {
+        return new Iterator<String>() {
+            boolean consumed = false;
+
+            @Override
+            public boolean hasNext() {
+                return !consumed;
+            }
+
+            @Override
+            public String next() {
+                consumed = true;
+                return ByteLine.this.toString();
+            }
+        };
+    }
+
+    @Override
+    Iterator<ByteBuffer> getByteIterator() {
+        return new SingleBufferIterator(bytes.duplicate());
+    }
+
+    @Override
+    ByteBuffer getChunk(long offset) {
+        return bytes;
+    }
+
+    @Override
+    int getChunkIndex(long offset) {
+        return (int) offset;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        Bytes.write(bytes, out);
+    }
+
+    @Override
+    public String toString() {
+        return Charset.defaultCharset().decode(bytes.duplicate()).toString();
+    }
+} //ByteLine
+
+class SingleBufferIterator implements Iterator<ByteBuffer> {
+    private ByteBuffer buffer;
+
+    SingleBufferIterator(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return buffer != null;
+    }
+
+    @Override
+    public ByteBuffer next() {
+        ByteBuffer ret = buffer;
+        buffer = null;
+        return ret;
+    }
+}
+
+/**
+ * Holds the information to quickly read a text line from a file.
+ * The bytes after the head are read through the {@link BlockCache#SHARED} cache
  */
 class LongLine extends FileLine {
     /* we cache first buffer so that most of times we don't need to hit the disk for comparing with other lines*/
-    private final String head;
-    private final ByteBuffer buffer = ByteBuffer.allocate(LENGTH_THRESHOLD);
+    private final ByteBuffer head;
     /**
      * Offset of the line within the file
      */
@@ -126,54 +303,76 @@ class LongLine extends FileLine {
     /**
      * @param fileChannel LongLine will not query nor change its current position. It cannot be closed until the LongLine
      *                    finishes reading the file
+     * @param lineHead    first bytes of the line, from its position to its limit. It must not be modified afterwards
      */
-    public LongLine(FileChannel fileChannel, String lineHead, long startFileOffset, long numBytes) throws IOException {
+    public LongLine(FileChannel fileChannel, ByteBuffer lineHead, long startFileOffset, long numBytes) throws IOException {
         this.fileChannel = fileChannel;
-        head = lineHead;
+        head = lineHead.slice();
         this.startFileOffset = startFileOffset;
         this.numBytes = numBytes;
-        this.buffer.limit(LENGTH_THRESHOLD);
     }
 
     @Override
     public Iterator<String> getIterator() throws IOException {
+        Iterator<ByteBuffer> byteIterator = getByteIterator();
         return new Iterator<String>() {
-            long currentOffset = startFileOffset;
-            boolean hasNext = true;
-
             @Override
             public boolean hasNext() {
-                return hasNext;
+                return byteIterator.hasNext();
             }
 
-            long getRelativeCurrentOffset() {
-                return currentOffset - startFileOffset;
+            @Override
+            public String next() {
+                return Charset.defaultCharset().decode(byteIterator.next().duplicate()).toString();
             }
+        };
+    }
+
+    @Override
+    Iterator<ByteBuffer> getByteIterator() {
+        return new Iterator<ByteBuffer>() {
+            long offset = 0;
 
             @Override
-            public String next() {
-                String ret;
-                if (currentOffset == startFileOffset) {
-                    currentOffset += head.length();
-                    ret = head;
-                } else {
-                    try {
-                        buffer.clear();
-                        int read = fileChannel.read(buffer, currentOffset);
-                        int chunkSize = Math.min(read, (int) (numBytes - getRelativeCurrentOffset()));
-                        ret = new String(buffer.array(), 0, chunkSize);
-                        currentOffset += LENGTH_THRESHOLD;
-                    } catch (IOException e) {
-                        throw new RuntimeException("reading file", e);
-                    }
+            public boolean hasNext() {
+                return offset < numBytes;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                ByteBuffer chunk;
+                try {
+                    chunk = getChunk(offset).duplicate();
+                } catch (IOException e) {
+                    throw new RuntimeException("reading file", e);
+                }
+                int index = getChunkIndex(offset);
+                int length = (int) Math.min(numBytes - offset, Math.min(chunk.limit() - index, LENGTH_THRESHOLD));
+                if (length <= 0) {
+                    throw new RuntimeException("line truncated at " + offset);
                 }
-                if (currentOffset >= startFileOffset + numBytes)
-                    hasNext = false;
-                return ret;
+                chunk.limit(index + length).position(index);
+                offset += length;
+                return chunk;
             }
         };
     }
 
+    @Override
+    ByteBuffer getChunk(long offset) throws IOException {
+        if (offset < head.limit()) {
+            return head;
+        }
+        return BlockCache.SHARED.getBlock(fileChannel, (startFileOffset + offset) / BlockCache.BLOCK_SIZE);
+    }
+
+    @Override
+    int getChunkIndex(long offset) {
+        if (offset < head.limit()) {
+            return (int) offset;
+        }
+        return (int) ((startFileOffset + offset) % BlockCache.BLOCK_SIZE);
+    }
 
     /**
      * @return the full length of the line
@@ -183,4 +382,46 @@ class LongLine extends FileLine {
         return numBytes;
     }
 
-}
\ No newline at end of file
+    /**
+     * @return the channel of the file which holds the line
+     */
+    FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    long getStartFileOffset() {
+        return startFileOffset;
+    }
+
+    /**
+     * @return the first bytes of the line, from 0 to the limit. They must not be modified
+     */
+    ByteBuffer getHead() {
+        return head;
+    }
+
+    /**
+     * When written to an {@link AsyncChannelOutputStream}, the bytes are copied from the file by the kernel
+     */
+    @Override
+    public void write(OutputStream out) throws IOException {
+        if (out instanceof AsyncChannelOutputStream) {
+            ((AsyncChannelOutputStream) out).transferFrom(fileChannel, startFileOffset, numBytes);
+            return;
+        }
+        //not through the block cache, so that it keeps the blocks of the lines being compared
+        Bytes.write(head.duplicate(), out);
+        long offset = head.limit();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BlockCache.BLOCK_SIZE, numBytes - offset));
+        while (offset < numBytes) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), numBytes - offset));
+            if (fileChannel.read(buffer, startFileOffset + offset) < 0) {
+                throw new EOFException("line truncated at " + offset);
+            }
+            buffer.flip();
+            offset += buffer.remaining();
+            Bytes.write(buffer, out);
+        }
+    }
+
+}
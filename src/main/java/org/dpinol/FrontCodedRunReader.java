@@ -0,0 +1,60 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the runs written by {@link FrontCodedRunWriter}. The shared bytes are already at the start of the
+ * buffer of the previous line, so only the suffix is copied.
+ * Lines are whole in memory, and each one is a view of the buffer which is only valid until the next one is read
+ */
+class FrontCodedRunReader implements RunReader {
+    static final int INITIAL_LINE_SIZE = 4 * 1024;
+
+    private final RecordInput input;
+    private byte[] line = new byte[INITIAL_LINE_SIZE];
+    private ByteBuffer lineBuffer = ByteBuffer.wrap(line);
+    private int lineLength = -1;
+    private int sharedPrefixLength = -1;
+
+    FrontCodedRunReader(InputStream in) {
+        input = new RecordInput(in);
+    }
+
+    @Override
+    public FileLine getBigLine() throws IOException {
+        if (!input.hasMore()) {
+            return null;
+        }
+        long shared = input.readVarLong();
+        long suffix = input.readVarLong();
+        if (shared > Math.max(lineLength, 0) || shared + suffix > Integer.MAX_VALUE - 8) {
+            throw new IOException("can't read line of " + (shared + suffix) + " bytes sharing " + shared);
+        }
+        int length = (int) (shared + suffix);
+        if (length > line.length) {
+            byte[] grown = new byte[Math.max(length, line.length * 2)];
+            System.arraycopy(line, 0, grown, 0, (int) shared);
+            line = grown;
+            lineBuffer = ByteBuffer.wrap(line);
+        }
+        input.readFully(line, (int) shared, (int) suffix);
+        //the length shared with a previous line, only when it's the exact common prefix
+        sharedPrefixLength = lineLength >= 0 && shared < FrontCodedRunWriter.MAX_SHARED ? (int) shared : -1;
+        lineLength = length;
+        ByteBuffer view = lineBuffer.duplicate();
+        view.limit(length).position(0);
+        return new ByteLine(view);
+    }
+
+    @Override
+    public int getSharedPrefixLength() {
+        return sharedPrefixLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
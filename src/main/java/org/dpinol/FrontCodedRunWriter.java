@@ -0,0 +1,91 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Writes each line as the number of bytes it shares with the previous line, followed by the rest of its bytes:
+ * a {@link Varints} shared length, a {@link Varints} suffix length, and the suffix.
+ * Since lines are sorted, neighbours often share long prefixes, which are written only once.
+ * Only the first {@link #MAX_SHARED} bytes of each line are compared with the previous one
+ */
+class FrontCodedRunWriter implements RunWriter {
+    static final int MAX_SHARED = FileLine.LENGTH_THRESHOLD;
+
+    private final OutputStream out;
+    private byte[] previous = new byte[MAX_SHARED];
+    private ByteBuffer previousView = ByteBuffer.wrap(previous);
+    private int previousLength = 0;
+    private byte[] current = new byte[MAX_SHARED];
+    private ByteBuffer currentView = ByteBuffer.wrap(current);
+
+    /**
+     * @param out it should be buffered. It's closed by {@link #close()}
+     */
+    FrontCodedRunWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        int headLength = Math.min(length, MAX_SHARED);
+        System.arraycopy(bytes, offset, current, 0, headLength);
+        int shared = shared(headLength);
+        Varints.write(out, shared);
+        Varints.write(out, length - shared);
+        out.write(bytes, offset + shared, length - shared);
+        swapHeads(headLength);
+    }
+
+    @Override
+    public void write(FileLine line) throws IOException {
+        int headLength = 0;
+        Iterator<ByteBuffer> iterator = line.getByteIterator();
+        while (headLength < MAX_SHARED && iterator.hasNext()) {
+            ByteBuffer chunk = iterator.next().duplicate();
+            int n = Math.min(chunk.remaining(), MAX_SHARED - headLength);
+            chunk.get(current, headLength, n);
+            headLength += n;
+        }
+        int shared = shared(headLength);
+        Varints.write(out, shared);
+        Varints.write(out, line.getNumBytes() - shared);
+        //skips the shared bytes, which may span several chunks
+        long position = 0;
+        iterator = line.getByteIterator();
+        while (iterator.hasNext()) {
+            ByteBuffer chunk = iterator.next().duplicate();
+            int length = chunk.remaining();
+            if (position + length > shared) {
+                chunk.position(chunk.position() + (int) Math.max(0, shared - position));
+                Bytes.write(chunk, out);
+            }
+            position += length;
+        }
+        swapHeads(headLength);
+    }
+
+    /**
+     * @return number of bytes shared by the head of the previous line and the first headLength bytes of current
+     */
+    private int shared(int headLength) {
+        return Bytes.mismatch(previousView, 0, currentView, 0, Math.min(previousLength, headLength));
+    }
+
+    private void swapHeads(int headLength) {
+        byte[] tmp = previous;
+        previous = current;
+        current = tmp;
+        ByteBuffer tmpView = previousView;
+        previousView = currentView;
+        currentView = tmpView;
+        previousLength = headLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -3,14 +3,25 @@ package org.dpinol;
 import java.util.ArrayList;
 
 /**
- *
+ * Lines passed at once to the {@link ChunkSorter}'s.
+ * It's full when it has {@link BigFileSorter#QUEUE_BUCKET_SIZE} lines, or when they hold
+ * {@link BigFileSorter#QUEUE_BUCKET_BYTES} in memory
  */
 class LineBucket extends ArrayList<FileLine> {
+    private long bytes = 0;
+
     LineBucket() {
         super(BigFileSorter.QUEUE_BUCKET_SIZE);
     }
 
+    @Override
+    public boolean add(FileLine line) {
+        //only the head of long lines is held in memory
+        bytes += Math.min(line.getNumBytes(), FileLine.LENGTH_THRESHOLD);
+        return super.add(line);
+    }
+
     boolean isFull() {
-        return size() == BigFileSorter.QUEUE_BUCKET_SIZE;
+        return size() == BigFileSorter.QUEUE_BUCKET_SIZE || bytes >= BigFileSorter.QUEUE_BUCKET_BYTES;
     }
 }
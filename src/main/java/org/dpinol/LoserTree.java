@@ -0,0 +1,155 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tournament tree of losers to merge k sorted sources.
+ * It holds one slot per source with its current line. Each internal node keeps the loser of the match
+ * played there, so replacing the winner only replays the matches on its path to the root: log k comparisons,
+ * where a heap needs up to 2 log k for a poll and an add.
+ * An exhausted source holds a null line, which loses against any line.
+ * <p>
+ * When the length of the prefix which a new line shares with the previous winner is known (eg. from a
+ * front-coded run), comparisons use offset-value coding: each loser keeps the length of the prefix it shares
+ * with the line which beat it. On the path of the winner all losers were beaten by it, so a new line which shares
+ * more bytes with the winner than a loser does is smaller, without looking at the lines. With equal lengths,
+ * the lines are only compared after the shared prefix
+ */
+class LoserTree {
+    private final int k;
+    /**
+     * tree[0] is the index of the winner source, tree[1..k-1] the index of the loser at each internal node.
+     * Leaf i has parent (i + k) / 2
+     */
+    private final int[] tree;
+    private final FileLine[] lines;
+    /* first bytes of each line, so that most comparisons don't need to access the lines */
+    private final long[] keyPrefixes;
+    /**
+     * length of the prefix that each line shares with the line which beat it, or -1 when unknown
+     */
+    private final int[] offsets;
+
+    /**
+     * @param firstLines first line of each source, or null for empty ones
+     */
+    LoserTree(FileLine[] firstLines) throws IOException {
+        k = firstLines.length;
+        tree = new int[Math.max(k, 1)];
+        lines = new FileLine[k];
+        keyPrefixes = new long[k];
+        offsets = new int[k];
+        //index k stands for a virtual line which beats any other one, so that the first matches are always lost
+        for (int i = 0; i < tree.length; i++) {
+            tree[i] = k;
+        }
+        for (int i = k - 1; i >= 0; i--) {
+            set(i, firstLines[i], -1);
+            replay(i);
+        }
+        if (k == 0) {
+            tree[0] = -1;
+        }
+    }
+
+    boolean isEmpty() {
+        return k == 0 || lines[tree[0]] == null;
+    }
+
+    /**
+     * @return index of the source with the smallest line
+     */
+    int getWinnerIndex() {
+        return tree[0];
+    }
+
+    FileLine getWinner() {
+        return lines[tree[0]];
+    }
+
+    /**
+     * Replaces the line of the winner source with its next one
+     *
+     * @param next null if the winner source is exhausted
+     */
+    void replaceWinner(FileLine next) throws IOException {
+        replaceWinner(next, -1);
+    }
+
+    /**
+     * @param sharedPrefixLength length of the common prefix of next and the current winner, or -1 if unknown
+     */
+    void replaceWinner(FileLine next, int sharedPrefixLength) throws IOException {
+        int winner = tree[0];
+        set(winner, next, sharedPrefixLength);
+        replay(winner);
+    }
+
+    private void set(int source, FileLine line, int offset) throws IOException {
+        lines[source] = line;
+        keyPrefixes[source] = line == null ? 0 : line.getKeyPrefix();
+        offsets[source] = offset;
+    }
+
+    /**
+     * Plays the matches from the leaf of source up to the root
+     */
+    private void replay(int source) {
+        int winner = source;
+        for (int node = (source + k) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * @return true if the line of source a goes before the one of source b, which are known to share their
+     * offsets with the same line. The offset of the loser is updated to what it shares with the winner
+     */
+    private boolean beats(int a, int b) {
+        if (a == k || b == k) {
+            return a == k;
+        }
+        FileLine lineA = lines[a];
+        FileLine lineB = lines[b];
+        if (lineA == null || lineB == null) {
+            return lineB == null && lineA != null;
+        }
+        int offsetA = offsets[a];
+        int offsetB = offsets[b];
+        if (offsetA >= 0 && offsetB >= 0 && offsetA != offsetB) {
+            //the loser shares with the winner the same bytes it shared with the previous line
+            return offsetA > offsetB;
+        }
+        int comp;
+        int shared;
+        long prefixA = keyPrefixes[a];
+        long prefixB = keyPrefixes[b];
+        if (prefixA != prefixB) {
+            comp = Long.compareUnsigned(prefixA, prefixB);
+            //prefixes are padded with zeros
+            shared = (int) Math.min(Long.numberOfLeadingZeros(prefixA ^ prefixB) / 8,
+                    Math.min(lineA.getNumBytes(), lineB.getNumBytes()));
+        } else if (lineA instanceof ByteLine && lineB instanceof ByteLine) {
+            ByteBuffer bytesA = ((ByteLine) lineA).getBytes();
+            ByteBuffer bytesB = ((ByteLine) lineB).getBytes();
+            int length = Math.min(bytesA.limit(), bytesB.limit());
+            int from = offsetA >= 0 && offsetA == offsetB ? Math.min(offsetA, length) : 0;
+            shared = from + Bytes.mismatch(bytesA, from, bytesB, from, length - from);
+            comp = shared < length ? (bytesA.get(shared) & 0xff) - (bytesB.get(shared) & 0xff)
+                    : Integer.compare(bytesA.limit(), bytesB.limit());
+        } else {
+            comp = lineA.compareTo(lineB);
+            shared = -1;
+        }
+        //ties are won by the lowest source, to keep the merge stable
+        boolean aWins = comp < 0 || (comp == 0 && a < b);
+        offsets[aWins ? b : a] = shared;
+        return aWins;
+    }
+}
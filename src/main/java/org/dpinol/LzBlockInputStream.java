@@ -0,0 +1,167 @@
+package org.dpinol;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the blocks written by {@link LzBlockOutputStream}, one at a time
+ */
+class LzBlockInputStream extends FilterInputStream {
+    private final byte[] block = new byte[LzBlockOutputStream.BLOCK_SIZE];
+    private final byte[] compressed = new byte[LzBlockOutputStream.maxCompressedLength(LzBlockOutputStream.BLOCK_SIZE)];
+    private int position = 0;
+    private int size = 0;
+    private boolean eof = false;
+
+    LzBlockInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == size && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == size && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, size - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < size || readBlock())) {
+            int step = (int) Math.min(n - skipped, size - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return size - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean readBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int rawLength = readInt(true);
+        if (rawLength < 0) {
+            eof = true;
+            return false;
+        }
+        int compressedLength = readInt(false);
+        if (rawLength > block.length || compressedLength > compressed.length || compressedLength < 0) {
+            throw new IOException("corrupted block of " + rawLength + " bytes");
+        }
+        if (compressedLength == 0) {
+            readFully(block, rawLength);
+        } else {
+            readFully(compressed, compressedLength);
+            decompress(compressed, compressedLength, block, rawLength);
+        }
+        position = 0;
+        size = rawLength;
+        return true;
+    }
+
+    static void decompress(byte[] src, int srcLength, byte[] dst, int rawLength) throws IOException {
+        int s = 0;
+        int d = 0;
+        try {
+            while (true) {
+                int token = src[s++] & 0xff;
+                int numLiterals = token >>> 4;
+                if (numLiterals == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        numLiterals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, s, dst, d, numLiterals);
+                s += numLiterals;
+                d += numLiterals;
+                if (d >= rawLength) {
+                    break;
+                }
+                int offset = (src[s++] & 0xff) | (src[s++] & 0xff) << 8;
+                int matchLength = token & 0x0f;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += LzBlockOutputStream.MIN_MATCH;
+                int ref = d - offset;
+                if (offset == 0 || ref < 0 || d + matchLength > rawLength) {
+                    throw new IOException("corrupted match at " + d);
+                }
+                //byte by byte, since the match may overlap the bytes being written
+                for (int i = 0; i < matchLength; i++) {
+                    dst[d++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupted block", e);
+        }
+        if (d != rawLength || s != srcLength) {
+            throw new IOException("corrupted block, decompressed " + d + " of " + rawLength + " bytes");
+        }
+    }
+
+    /**
+     * @param atBlockStart if true, the end of the stream returns -1 instead of failing
+     */
+    private int readInt(boolean atBlockStart) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                if (atBlockStart && i == 0) {
+                    return -1;
+                }
+                throw new EOFException("truncated block header");
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(b, read, len - read);
+            if (n < 0) {
+                throw new EOFException("truncated block");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.dpinol;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses a stream in independent blocks with a byte oriented LZ77 codec, in the spirit of LZ4: much faster
+ * than deflate, at the cost of a lower ratio. Each block is written as its raw length and its compressed length
+ * (0 when stored uncompressed because it didn't shrink), followed by a sequence of tokens.
+ * Each token has 4 bits for the number of literals and 4 bits for the match length minus {@link #MIN_MATCH},
+ * 15 meaning that more length bytes follow (each 255 adds 255 and continues). It's followed by the literals,
+ * and by the 2 bytes little-endian offset of the match. The last token of a block has no match
+ */
+class LzBlockOutputStream extends FilterOutputStream {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 14;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+    private final int[] hashTable = new int[1 << HASH_BITS];
+    private int size = 0;
+
+    LzBlockOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (size == BLOCK_SIZE) {
+            writeBlock();
+        }
+        block[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (size == BLOCK_SIZE) {
+                writeBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - size);
+            System.arraycopy(b, off, block, size, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        int compressedLength = compress(block, size, compressed, hashTable);
+        writeInt(size);
+        if (compressedLength < size) {
+            writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+        } else {
+            writeInt(0);
+            out.write(block, 0, size);
+        }
+        size = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Greedy parse, finding matches with a hash table of the last position of each 4 bytes sequence
+     *
+     * @param dst at least {@link #maxCompressedLength(int)} bytes
+     * @return compressed length
+     */
+    static int compress(byte[] src, int srcLength, byte[] dst, int[] hashTable) {
+        Arrays.fill(hashTable, -1);
+        int anchor = 0;
+        int d = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= srcLength) {
+            int sequence = readInt(src, i);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = hashTable[hash];
+            hashTable[hash] = i;
+            if (ref >= 0 && i - ref <= MAX_OFFSET && readInt(src, ref) == sequence) {
+                int matchLength = MIN_MATCH;
+                while (i + matchLength < srcLength && src[ref + matchLength] == src[i + matchLength]) {
+                    matchLength++;
+                }
+                d = writeToken(dst, d, src, anchor, i - anchor, matchLength - MIN_MATCH);
+                dst[d++] = (byte) (i - ref);
+                dst[d++] = (byte) ((i - ref) >>> 8);
+                if (matchLength - MIN_MATCH >= 15) {
+                    d = writeLength(dst, d, matchLength - MIN_MATCH - 15);
+                }
+                i += matchLength;
+                anchor = i;
+            } else {
+                i++;
+            }
+        }
+        return writeToken(dst, d, src, anchor, srcLength - anchor, 0);
+    }
+
+    /**
+     * Writes the token and the literals
+     */
+    private static int writeToken(byte[] dst, int d, byte[] src, int literalsStart, int numLiterals,
+                                  int matchLength) {
+        dst[d++] = (byte) ((Math.min(numLiterals, 15) << 4) | Math.min(matchLength, 15));
+        if (numLiterals >= 15) {
+            d = writeLength(dst, d, numLiterals - 15);
+        }
+        System.arraycopy(src, literalsStart, dst, d, numLiterals);
+        return d + numLiterals;
+    }
+
+    private static int writeLength(byte[] dst, int d, int length) {
+        while (length >= 255) {
+            dst[d++] = (byte) 255;
+            length -= 255;
+        }
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+    }
+}
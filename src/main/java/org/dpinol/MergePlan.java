@@ -0,0 +1,185 @@
+package org.dpinol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Plans the merge of the sorted runs so that no {@link Merger} opens more than a maximum number of files at once.
+ * When there are too many runs, intermediate passes merge them into bigger temporary runs.
+ * The layout minimizes the total bytes read and written, like a k-ary Huffman tree: the smallest runs are
+ * merged first, and only the first step may merge less than the maximum fan-in, so that all other ones are full.
+ * Steps whose inputs are ready are run in parallel, and the final one is split in key ranges by a
+ * {@link PartitionedMerger}
+ */
+class MergePlan {
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * A sorted run, either an existing file or the output of a step
+     */
+    static class Run {
+        final File file;
+        final long numBytes;
+        /**
+         * null for the initial runs
+         */
+        final Step producer;
+
+        Run(File file, long numBytes, Step producer) {
+            this.file = file;
+            this.numBytes = numBytes;
+            this.producer = producer;
+        }
+    }
+
+    /**
+     * Merge of several runs into a file
+     */
+    static class Step {
+        final List<Run> inputs;
+        final Run output;
+        final boolean isFinal;
+
+        Step(List<Run> inputs, File outputFile, boolean isFinal) {
+            this.inputs = inputs;
+            this.isFinal = isFinal;
+            long numBytes = 0;
+            for (Run input : inputs) {
+                numBytes += input.numBytes;
+            }
+            this.output = new Run(outputFile, numBytes, this);
+        }
+
+        void run(SortOptions options) throws Exception {
+            List<File> files = new ArrayList<>(inputs.size());
+            for (Run input : inputs) {
+                files.add(input.file);
+            }
+            if (!isFinal) {
+                try (Merger merger = new Merger(RunFiles.openReaders(files, options),
+                        RunFiles.createWriter(output.file, options))) {
+                    merger.merge();
+                }
+            } else if (options.getMergePartitions() > 1 && !files.isEmpty() && RunFiles.isPlainText(options)) {
+                new PartitionedMerger(files, output.file, options).merge();
+            } else {
+                try (Merger merger = new Merger(files, output.file, options)) {
+                    merger.merge();
+                }
+            }
+            //consumed runs are deleted right away, so that the temporary folder shrinks while merging
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param runs      sorted files to merge. Empty ones are ignored
+     * @param maxFanIn  maximum number of files merged at once, at least 2
+     * @param tmpFolder where the intermediate runs are created
+     * @param output    where all runs are finally merged
+     */
+    static MergePlan create(List<File> runs, int maxFanIn, File tmpFolder, File output) throws IOException {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("maximum fan-in must be at least 2: " + maxFanIn);
+        }
+        MergePlan plan = new MergePlan();
+        PriorityQueue<Run> pending = new PriorityQueue<>(Math.max(1, runs.size()),
+                Comparator.comparingLong((Run run) -> run.numBytes));
+        for (File file : runs) {
+            if (file.length() > 0) {
+                pending.add(new Run(file, file.length(), null));
+            }
+        }
+        //with n runs and fan-in k, all steps are full when (n - 1) % (k - 1) == 0
+        int fanIn = pending.size() <= maxFanIn ? pending.size() : (pending.size() - 2) % (maxFanIn - 1) + 2;
+        while (pending.size() > maxFanIn) {
+            List<Run> inputs = new ArrayList<>(fanIn);
+            for (int i = 0; i < fanIn; i++) {
+                inputs.add(pending.poll());
+            }
+            Step step = new Step(inputs, File.createTempFile("merge_tmp", null, tmpFolder), false);
+            plan.steps.add(step);
+            pending.add(step.output);
+            fanIn = maxFanIn;
+        }
+        plan.steps.add(new Step(new ArrayList<>(pending), output, true));
+        return plan;
+    }
+
+    /**
+     * Deletes the runs written by the steps, when the merge fails. Steps still running can't be stopped,
+     * so their outputs may be left behind
+     */
+    private void deleteIntermediateRuns() {
+        for (Step step : steps) {
+            if (!step.isFinal) {
+                step.output.file.delete();
+            }
+        }
+    }
+
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return total bytes written by all the steps, which are also read by the following ones
+     */
+    long getBytesWritten() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.output.numBytes;
+        }
+        return total;
+    }
+
+    /**
+     * Runs each step as soon as all its inputs are ready
+     */
+    void execute(ExecutorService executorService, SortOptions options) throws Exception {
+        Global.log("Merging in " + steps.size() + " steps, writing " + getBytesWritten() / 1_024 + "kB");
+        Map<Step, CompletableFuture<Void>> futures = new HashMap<>();
+        CompletableFuture<Void> last = null;
+        for (Step step : steps) {
+            List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+            for (Run input : step.inputs) {
+                if (input.producer != null) {
+                    dependencies.add(futures.get(input.producer));
+                }
+            }
+            last = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0]))
+                    .thenRunAsync(() -> {
+                        try {
+                            step.run(options);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, executorService);
+            futures.put(step, last);
+        }
+        try {
+            last.get();
+        } catch (ExecutionException e) {
+            deleteIntermediateRuns();
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw e;
+        }
+    }
+}
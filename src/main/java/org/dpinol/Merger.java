@@ -1,77 +1,69 @@
 package org.dpinol;
 
 import java.io.*;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Merges a list of sorted files into a single one
  */
 public class Merger implements AutoCloseable {
-    private final List<BigLineReader> readers;
-    private final BufferedWriter writer;
+    private final List<RunReader> readers;
+    private final RunWriter out;
 
     /**
      * @param inputFiles should not be empty
      */
     public Merger(List<File> inputFiles, File output) throws IOException {
-        readers = new ArrayList<>(inputFiles.size());
-        for (File inputFile : inputFiles) {
-            if (inputFile.length() > 0) {
-                readers.add(new BigLineReader(inputFile));
-            }
-        }
-        writer = new BufferedWriter(new FileWriter(output));
+        this(inputFiles, output, new SortOptions());
+    }
+
+    /**
+     * @param inputFiles runs written by {@link RunFiles#createWriter(File, SortOptions)}. Should not be empty
+     * @param output     written as plain text
+     */
+    public Merger(List<File> inputFiles, File output, SortOptions options) throws IOException {
+        readers = RunFiles.openReaders(inputFiles, options);
+        out = new TextRunWriter(AsyncChannelOutputStream.create(output, options));
+    }
+
+    /**
+     * @param readers sorted lines to merge. They are closed by the merger, as well as out
+     */
+    Merger(List<RunReader> readers, RunWriter out) {
+        this.readers = readers;
+        this.out = out;
     }
 
     @Override
     public void close() throws Exception {
-        for (BigLineReader reader : readers) {
+        for (RunReader reader : readers) {
             reader.close();
         }
-        writer.close();
+        out.close();
     }
 
 
-    private static class LineWithOrigin implements Comparable<LineWithOrigin> {
-        FileLine line;
-        int readerIndex;
-
-        LineWithOrigin(FileLine line, int readerIndex) {
-            this.line = line;
-            this.readerIndex = readerIndex;
-        }
-
-        @Override
-        public int compareTo(LineWithOrigin o) {
-            return line.compareTo(o.line);
-        }
-    }
-
     void merge() throws IOException {
         int linesPushed = 0;
         Global.log("Merging " + readers.size() + " files");
-        //to avoid comparing the first of each file too many times, we use a heap
-        SimpleHeap<LineWithOrigin> front = new SimpleHeap<>(readers.size());
-        //load heap
-        int readerIndex = 0;
-        for (BigLineReader reader : readers) {
-            front.add(new LineWithOrigin(reader.getBigLine(), readerIndex++));
+        //to avoid comparing the first of each file too many times, we use a tournament tree
+        FileLine[] firstLines = new FileLine[readers.size()];
+        for (int readerIndex = 0; readerIndex < firstLines.length; readerIndex++) {
+            firstLines[readerIndex] = readers.get(readerIndex).getBigLine();
             linesPushed++;
         }
+        LoserTree front = new LoserTree(firstLines);
 
         int numDrainedFiles = 0;
         int linesRead = 0;
         int logStep = Math.max(readers.size() / 10, 1);
         while (!front.isEmpty()) {
-            LineWithOrigin first = front.poll();
-            first.line.write(writer);
-            writer.newLine();
+            int readerIndex = front.getWinnerIndex();
+            out.write(front.getWinner());
             linesRead++;
-            BigLineReader firstReader = readers.get(first.readerIndex);
-            FileLine newLine = firstReader.getBigLine();
+            RunReader reader = readers.get(readerIndex);
+            FileLine newLine = reader.getBigLine();
             if (newLine != null) {
-                front.add(new LineWithOrigin(newLine, first.readerIndex));
                 linesPushed++;
             } else {
                 numDrainedFiles++;
@@ -79,6 +71,8 @@ public class Merger implements AutoCloseable {
                     Global.log("Completed " + numDrainedFiles + "/" + readers.size());
                 }
             }
+            //the new line follows the winner in its run, so it's known to share this prefix with it
+            front.replaceWinner(newLine, reader.getSharedPrefixLength());
         }
         Global.log(linesPushed + " lines pushed");
         Global.log(linesRead + " lines read");
@@ -0,0 +1,150 @@
+package org.dpinol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merges sorted runs into a single file with several threads, each of which merges a range of keys.
+ * Splitter keys are sampled from the runs, and each run is binary searched to find where each range starts.
+ * Since lines are written unchanged, the offset of each range in the output is known before merging it,
+ * so all ranges are written concurrently to their own region of the output.
+ * Runs must be plain text, see {@link RunFiles#isPlainText(SortOptions)}
+ */
+class PartitionedMerger {
+    /**
+     * Number of lines sampled per partition to pick the splitters
+     */
+    static final int SAMPLES_PER_PARTITION = 16;
+
+    private final List<File> runs = new ArrayList<>();
+    private final File output;
+    private final SortOptions options;
+    private final int numPartitions;
+
+    /**
+     * @param inputFiles sorted runs, with lines separated by {@link Global#LINE_SEPARATOR}
+     */
+    PartitionedMerger(List<File> inputFiles, File output, SortOptions options) {
+        for (File inputFile : inputFiles) {
+            if (inputFile.length() > 0) {
+                runs.add(inputFile);
+            }
+        }
+        this.output = output;
+        this.options = options;
+        this.numPartitions = Math.max(1, options.getMergePartitions());
+    }
+
+    void merge() throws Exception {
+        Splitters splitters = sampleSplitters();
+        //boundaries[r][p] is the offset where partition p starts within run r
+        long[][] boundaries = new long[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) {
+            boundaries[r] = findBoundaries(runs.get(r), splitters);
+        }
+        Global.log("Merging " + runs.size() + " files in " + splitters.getNumPartitions() + " partitions");
+        //all the partitions are merged at once, each reading from all the runs
+        int readAheadSize = ReadAheadChannel.getBufferSize(options, runs.size() * splitters.getNumPartitions());
+        ExecutorService executorService = Executors.newFixedThreadPool(splitters.getNumPartitions());
+        try (FileChannel outChannel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < splitters.getNumPartitions(); p++) {
+                int partition = p;
+                futures.add(executorService.submit(() -> {
+                    mergePartition(partition, boundaries, readAheadSize, outChannel);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private void mergePartition(int partition, long[][] boundaries, int readAheadSize, FileChannel outChannel)
+            throws Exception {
+        //whatever precedes the partition in any run goes before it in the output
+        long outputOffset = 0;
+        List<RunReader> readers = new ArrayList<>();
+        for (int r = 0; r < runs.size(); r++) {
+            long start = boundaries[r][partition];
+            long end = boundaries[r][partition + 1];
+            outputOffset += start;
+            if (start < end) {
+                BigLineReader reader = new BigLineReader(runs.get(r).toPath(), start, end, options.isMappedInput());
+                reader.readAhead(readAheadSize);
+                readers.add(reader);
+            }
+        }
+        RunWriter out = new TextRunWriter(new AsyncChannelOutputStream(outChannel, outputOffset, false,
+                options.getWriteBufferSize(), options.getWriteBuffers()));
+        try (Merger merger = new Merger(readers, out)) {
+            merger.merge();
+        }
+    }
+
+    /**
+     * @return splitters taken from lines spread evenly over all the runs
+     */
+    private Splitters sampleSplitters() throws IOException {
+        long totalBytes = 0;
+        for (File run : runs) {
+            totalBytes += run.length();
+        }
+        int numSamples = SAMPLES_PER_PARTITION * numPartitions;
+        List<FileLine> samples = new ArrayList<>(numSamples);
+        for (File run : runs) {
+            long runBytes = run.length();
+            int runSamples = (int) Math.max(1, numSamples * runBytes / Math.max(1, totalBytes));
+            try (BigLineReader reader = new BigLineReader(run, options.isMappedInput())) {
+                for (int i = 0; i < runSamples; i++) {
+                    reader.seekLineStart(runBytes * i / runSamples);
+                    FileLine line = reader.getBigLine();
+                    if (line != null) {
+                        samples.add(Splitters.copyHead(line));
+                    }
+                }
+            }
+        }
+        return Splitters.fromSamples(samples, numPartitions);
+    }
+
+    /**
+     * @return for each splitter, the offset of the first line of the run which is not smaller than it,
+     * followed by the size of the run
+     */
+    private long[] findBoundaries(File run, Splitters splitters) throws IOException {
+        long runBytes = run.length();
+        long[] boundaries = new long[splitters.size() + 2];
+        try (BigLineReader reader = new BigLineReader(run, options.isMappedInput())) {
+            for (int s = 0; s < splitters.size(); s++) {
+                FileLine splitter = splitters.get(s);
+                //first position whose next line is not smaller than the splitter
+                long lo = boundaries[s];
+                long hi = runBytes;
+                while (lo < hi) {
+                    long mid = (lo + hi) >>> 1;
+                    FileLine line = reader.seekLineStart(mid) < runBytes ? reader.getBigLine() : null;
+                    if (line == null || line.compareTo(splitter) >= 0) {
+                        hi = mid;
+                    } else {
+                        lo = mid + 1;
+                    }
+                }
+                boundaries[s + 1] = reader.seekLineStart(lo);
+            }
+        }
+        boundaries[splitters.size() + 1] = runBytes;
+        return boundaries;
+    }
+}
@@ -0,0 +1,154 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a range of a file sequentially, while the next buffer is read in the background by a pool of I/O threads.
+ * Each merged run is read through one of them, so that the merge thread finds its bytes in memory
+ * instead of blocking on small reads of each run in turn.
+ * Reads are positional, so the channel can be shared with the {@link LongLine}s of the run
+ */
+class ReadAheadChannel implements ReadableByteChannel {
+    /**
+     * Threads which fill the buffers of all channels
+     */
+    static final int IO_THREADS = 4;
+    static final int MIN_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(IO_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final long endOffset;
+    /**
+     * offset of the first byte which is not requested yet
+     */
+    private long fetchOffset;
+    private ByteBuffer current;
+    private ByteBuffer spare;
+    private Future<ByteBuffer> pending;
+    private boolean open = true;
+
+    /**
+     * @return bytes of each of the 2 buffers of a channel, when numChannels are read at once with the
+     * {@link SortOptions#getReadAheadBudget()}, or 0 if there's no read ahead. There's none either when the
+     * budget can't give {@link #MIN_BUFFER_SIZE} to each buffer, so that it's never exceeded
+     */
+    static int getBufferSize(SortOptions options, int numChannels) {
+        long share = options.getReadAheadBudget() / (2L * Math.max(1, numChannels));
+        if (share < MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return (int) Math.min(MAX_BUFFER_SIZE, share);
+    }
+
+    /**
+     * @param startOffset  first byte read
+     * @param endOffset    bytes at or after it are not read
+     * @param closeChannel if true, the channel is closed with this one
+     */
+    ReadAheadChannel(FileChannel channel, long startOffset, long endOffset, int bufferSize, boolean closeChannel) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.endOffset = endOffset;
+        this.fetchOffset = startOffset;
+        current = ByteBuffer.allocate(bufferSize);
+        current.limit(0);
+        spare = ByteBuffer.allocate(bufferSize);
+        fetchNext();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!current.hasRemaining()) {
+            if (pending == null) {
+                return -1;
+            }
+            ByteBuffer filled = waitPending();
+            spare = current;
+            current = filled;
+            fetchNext();
+            if (!current.hasRemaining()) {
+                return -1;
+            }
+        }
+        int n = Math.min(dst.remaining(), current.remaining());
+        ByteBuffer chunk = current.duplicate();
+        chunk.limit(chunk.position() + n);
+        dst.put(chunk);
+        current.position(current.position() + n);
+        return n;
+    }
+
+    /**
+     * Requests the spare buffer to be filled with the following bytes, unless the range is complete
+     */
+    private void fetchNext() {
+        if (fetchOffset >= endOffset) {
+            pending = null;
+            return;
+        }
+        ByteBuffer buffer = spare;
+        spare = null;
+        long offset = fetchOffset;
+        int length = (int) Math.min(buffer.capacity(), endOffset - offset);
+        fetchOffset += length;
+        pending = IO_EXECUTOR.submit(() -> {
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        });
+    }
+
+    private ByteBuffer waitPending() throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ioe = new InterruptedIOException("interrupted while reading ahead");
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("reading ahead", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (pending != null) {
+            //not interrupted, since it would close the channel
+            pending.cancel(false);
+            pending = null;
+        }
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+}
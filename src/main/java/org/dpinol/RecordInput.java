@@ -0,0 +1,136 @@
+package org.dpinol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the binary records of a run from a stream, through its own buffer
+ */
+class RecordInput implements AutoCloseable {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    /* for records which don't fit in the buffer */
+    private byte[] large = new byte[0];
+    private int position = 0;
+    private int end = 0;
+
+    RecordInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    boolean hasMore() throws IOException {
+        return position < end || fill();
+    }
+
+    /**
+     * @see Varints
+     */
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position == end && !fill()) {
+                throw new EOFException("truncated number");
+            }
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed number");
+    }
+
+    /**
+     * @return 8 bytes as a big-endian long
+     */
+    long readLong() throws IOException {
+        while (end - position < Long.BYTES) {
+            if (!fill()) {
+                throw new EOFException("truncated number");
+            }
+        }
+        long value = bufferView.getLong(position);
+        position += Long.BYTES;
+        return value;
+    }
+
+    /**
+     * @return a view of the next length bytes, which is only valid until the next read. Records which fit in
+     * the buffer are not copied
+     */
+    ByteBuffer readSlice(int length) throws IOException {
+        if (length > buffer.length) {
+            if (large.length < length) {
+                large = new byte[length];
+            }
+            readFully(large, 0, length);
+            return ByteBuffer.wrap(large, 0, length);
+        }
+        while (end - position < length) {
+            if (!fill()) {
+                throw new EOFException("truncated record");
+            }
+        }
+        ByteBuffer slice = bufferView.duplicate();
+        slice.limit(position + length).position(position);
+        position += length;
+        return slice;
+    }
+
+    void readFully(byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == end) {
+                if (length >= buffer.length) {
+                    //too big to be buffered
+                    int read = in.read(dst, offset, length);
+                    if (read < 0) {
+                        throw new EOFException("truncated record");
+                    }
+                    offset += read;
+                    length -= read;
+                    continue;
+                }
+                if (!fill()) {
+                    throw new EOFException("truncated record");
+                }
+            }
+            int n = Math.min(length, end - position);
+            System.arraycopy(buffer, position, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Reads more bytes after the unread ones, which are first moved to the start of the buffer
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, end - position);
+            end -= position;
+            position = 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read <= 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,158 @@
+package org.dpinol;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded lock-free queue for several producers and consumers. Each slot has a sequence number which tells
+ * whether it's free to write for a given lap or holds an element to read, so that threads only contend on
+ * the position counters with compare-and-set, instead of on a lock.
+ * Producers call {@link #close()} after their last element, and consumers get null from {@link #take()}
+ * once everything has been taken, so they don't need to guess the end from timeouts.
+ * A consumer which fails calls {@link #cancel()}, so that producers stop instead of waiting for it
+ *
+ * @param <T> elements, never null
+ */
+class RingBuffer<T> {
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong putPosition = new AtomicLong();
+    private final AtomicLong takePosition = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final LongAdder waits = new LongAdder();
+    private volatile boolean closed = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if it's full
+     */
+    boolean offer(T element) {
+        long position = putPosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (putPosition.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    //publishes the element to the consumer which reads this sequence
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = putPosition.get();
+            } else if (diff < 0) {
+                //the slot still holds the element of the previous lap
+                return false;
+            } else {
+                position = putPosition.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if it's empty
+     */
+    T poll() {
+        long position = takePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (takePosition.compareAndSet(position, position + 1)) {
+                    T element = elements.get(index);
+                    elements.lazySet(index, null);
+                    //frees the slot for the producer of the next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = takePosition.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = takePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Adds the element, waiting while it's full
+     *
+     * @return false if it has been cancelled, and the element was dropped
+     */
+    boolean put(T element) throws InterruptedIOException {
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        for (int attempt = 0; !cancelled && !offer(element); attempt++) {
+            idle(attempt);
+        }
+        return !cancelled;
+    }
+
+    /**
+     * @return the oldest element, waiting while it's empty, or null if it's closed and empty
+     */
+    T take() throws InterruptedIOException {
+        for (int attempt = 0; ; attempt++) {
+            T element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                //elements put before closing are visible now
+                return poll();
+            }
+            idle(attempt);
+        }
+    }
+
+    /**
+     * Signals that no more elements will be put
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Signals that the elements are no longer needed, so that producers stop putting them
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return number of times that threads have waited for it
+     */
+    long getWaits() {
+        return waits.sum();
+    }
+
+    private void idle(int attempt) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("waiting for ring buffer");
+        }
+        waits.increment();
+        waitStrategy.idle(attempt);
+    }
+}
@@ -0,0 +1,155 @@
+package org.dpinol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Collects the runs written by the {@link ChunkSorter}s, and merges them in the background while they're still
+ * being generated (see {@link SortOptions#getBackgroundMergeFanIn()}).
+ * Runs are kept by level: sorters add runs to level 0, and whenever a level holds fan-in runs they're merged
+ * into a run of the next level, so the final merge gets a few big runs instead of many small ones.
+ * Merged runs are deleted as soon as they've been consumed
+ */
+class RunCascade implements AutoCloseable {
+    /**
+     * Threads which merge runs in the background, competing for the cores with the sorters
+     */
+    static final int MERGE_THREADS = 2;
+
+    private final File tmpFolder;
+    private final SortOptions options;
+    private final int fanIn;
+    private final List<List<File>> levels = new ArrayList<>();
+    private ExecutorService executorService;
+    private int pendingMerges = 0;
+    private IOException failure;
+
+    /**
+     * @param tmpFolder where merged runs are created
+     */
+    RunCascade(File tmpFolder, SortOptions options) {
+        this.tmpFolder = tmpFolder;
+        this.options = options;
+        fanIn = options.getBackgroundMergeFanIn();
+    }
+
+    /**
+     * Adds a run which has been completely written
+     */
+    void add(File run) {
+        add(run, 0);
+    }
+
+    private synchronized void add(File run, int level) {
+        while (levels.size() <= level) {
+            levels.add(new ArrayList<>());
+        }
+        List<File> runs = levels.get(level);
+        runs.add(run);
+        if (fanIn < 2 || runs.size() < fanIn || failure != null) {
+            return;
+        }
+        List<File> inputs = new ArrayList<>(runs);
+        runs.clear();
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(MERGE_THREADS);
+        }
+        pendingMerges++;
+        executorService.submit(() -> merge(inputs, level + 1));
+    }
+
+    private void merge(List<File> inputs, int level) {
+        File output = null;
+        boolean merged = false;
+        try {
+            output = File.createTempFile("merge_tmp", null, tmpFolder);
+            Merger merger = new Merger(RunFiles.openReaders(inputs, options), RunFiles.createWriter(output, options));
+            try {
+                merger.merge();
+            } finally {
+                merger.close();
+            }
+            for (File input : inputs) {
+                input.delete();
+            }
+            merged = true;
+        } catch (Throwable e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        } finally {
+            //also on errors, or finish and close would wait forever
+            synchronized (this) {
+                pendingMerges--;
+                notifyAll();
+                if (merged) {
+                    add(output, level);
+                } else {
+                    if (output != null) {
+                        output.delete();
+                    }
+                    //so that they're deleted on close
+                    levels.get(level - 1).addAll(inputs);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the background merges
+     *
+     * @return the runs which have not been merged yet, of all levels. They're no longer deleted by close
+     */
+    synchronized List<File> finish() throws IOException, InterruptedException {
+        while (pendingMerges > 0) {
+            wait();
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        List<File> runs = new ArrayList<>();
+        for (List<File> level : levels) {
+            runs.addAll(level);
+            level.clear();
+        }
+        Global.log(runs.size() + " runs left in " + levels.size() + " levels");
+        return runs;
+    }
+
+    /**
+     * Deletes the runs which have not been returned by {@link #finish()}, eg. if the job failed.
+     * It waits for the background merges even if interrupted, since they may be using the runs
+     */
+    @Override
+    public synchronized void close() {
+        boolean interrupted = false;
+        while (pendingMerges > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        for (List<File> level : levels) {
+            for (File run : level) {
+                run.delete();
+            }
+            level.clear();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the temporary run files, which trades CPU for temp disk bandwidth.
+ * Runs are decompressed while streaming them through the merge
+ */
+public enum RunCodec {
+    /**
+     * Plain runs, which can be mapped and read by ranges
+     */
+    NONE {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        InputStream wrap(InputStream in) {
+            return in;
+        }
+    },
+    /**
+     * Deflate at its fastest level
+     */
+    DEFLATE {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), CODEC_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        //not done by the stream, since the deflater is not its default one
+                        def.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        InputStream wrap(InputStream in) {
+            return new InflaterInputStream(in, new Inflater(), CODEC_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    },
+    /**
+     * Pure java LZ block codec, see {@link LzBlockOutputStream}
+     */
+    LZ {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            return new LzBlockOutputStream(out);
+        }
+
+        @Override
+        InputStream wrap(InputStream in) {
+            return new LzBlockInputStream(in);
+        }
+    };
+
+    private static final int CODEC_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return a stream which compresses what is written to out. Closing it closes out
+     */
+    abstract OutputStream wrap(OutputStream out);
+
+    /**
+     * @return a stream which decompresses what is read from in. Closing it closes in
+     */
+    abstract InputStream wrap(InputStream in);
+}
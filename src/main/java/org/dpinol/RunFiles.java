@@ -0,0 +1,90 @@
+package org.dpinol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the writers and readers of the temporary sorted runs, according to the {@link SortOptions}
+ */
+final class RunFiles {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private RunFiles() {
+    }
+
+    /**
+     * @return a writer whose bytes are written to disk by another thread, see {@link AsyncChannelOutputStream}
+     */
+    static RunWriter createWriter(File run, SortOptions options) throws IOException {
+        OutputStream out = AsyncChannelOutputStream.create(run, options);
+        if (options.getRunCodec() != RunCodec.NONE) {
+            //codecs are slow with small writes
+            out = new BufferedOutputStream(options.getRunCodec().wrap(out), BUFFER_SIZE);
+        }
+        return options.getRunFormat().createWriter(out, options.getBlobStore());
+    }
+
+    static RunReader openReader(File run, SortOptions options) throws IOException {
+        return openReader(run, options, 0);
+    }
+
+    /**
+     * @param readAheadSize if not 0, the run is read ahead in buffers of this size, see {@link ReadAheadChannel}
+     */
+    static RunReader openReader(File run, SortOptions options, int readAheadSize) throws IOException {
+        if (isPlainText(options)) {
+            BigLineReader reader = new BigLineReader(run, options.isMappedInput());
+            reader.readAhead(readAheadSize);
+            return reader;
+        }
+        InputStream in;
+        if (readAheadSize > 0) {
+            FileChannel channel = FileChannel.open(run.toPath(), StandardOpenOption.READ);
+            in = Channels.newInputStream(new ReadAheadChannel(channel, 0, channel.size(), readAheadSize, true));
+        } else {
+            in = new FileInputStream(run);
+        }
+        return options.getRunFormat().createReader(options.getRunCodec().wrap(
+                new BufferedInputStream(in, BUFFER_SIZE)), options.getBlobStore());
+    }
+
+    /**
+     * @return readers of the runs which are not empty, sharing the read ahead budget of the options.
+     * If any fails to open, the previous ones are closed
+     */
+    static List<RunReader> openReaders(List<File> runs, SortOptions options) throws IOException {
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        int readAheadSize = ReadAheadChannel.getBufferSize(options, runs.size());
+        try {
+            for (File run : runs) {
+                if (run.length() > 0) {
+                    readers.add(openReader(run, options, readAheadSize));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            throw e;
+        }
+        return readers;
+    }
+
+    /**
+     * @return true if runs are written as plain text, so that they can be read by {@link BigLineReader}
+     * from any line, eg. by a {@link PartitionedMerger}
+     */
+    static boolean isPlainText(SortOptions options) {
+        return options.getRunFormat() == RunFormat.TEXT && options.getRunCodec() == RunCodec.NONE;
+    }
+}
@@ -0,0 +1,78 @@
+package org.dpinol;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Layout of the lines within the temporary run files, before any {@link RunCodec}
+ */
+public enum RunFormat {
+    /**
+     * Lines separated by {@link Global#LINE_SEPARATOR}, like the input
+     */
+    TEXT {
+        @Override
+        RunWriter createWriter(OutputStream out, BlobStore blobs) {
+            return new TextRunWriter(out);
+        }
+
+        @Override
+        RunReader createReader(InputStream in, BlobStore blobs) {
+            return new StreamRunReader(in);
+        }
+    },
+    /**
+     * Each line stores only the bytes which it doesn't share with the previous one, see
+     * {@link FrontCodedRunWriter}. The merge uses the shared length to skip comparing known equal prefixes
+     */
+    FRONT_CODED {
+        @Override
+        RunWriter createWriter(OutputStream out, BlobStore blobs) {
+            return new FrontCodedRunWriter(out);
+        }
+
+        @Override
+        RunReader createReader(InputStream in, BlobStore blobs) {
+            return new FrontCodedRunReader(in);
+        }
+    },
+    /**
+     * Each line is preceded by its length, so that it's read in bulk instead of scanning for the line separator,
+     * see {@link BinaryRunWriter}. Long lines may be references to a {@link BlobStore}
+     */
+    BINARY {
+        @Override
+        RunWriter createWriter(OutputStream out, BlobStore blobs) {
+            return new BinaryRunWriter(out, false, blobs);
+        }
+
+        @Override
+        RunReader createReader(InputStream in, BlobStore blobs) {
+            return new BinaryRunReader(in, false, blobs);
+        }
+    },
+    /**
+     * Like {@link #BINARY}, also storing the key prefix of each line, which the merge uses for most comparisons
+     */
+    BINARY_KEY_PREFIX {
+        @Override
+        RunWriter createWriter(OutputStream out, BlobStore blobs) {
+            return new BinaryRunWriter(out, true, blobs);
+        }
+
+        @Override
+        RunReader createReader(InputStream in, BlobStore blobs) {
+            return new BinaryRunReader(in, true, blobs);
+        }
+    };
+
+    /**
+     * @param blobs if not null, binary formats store long lines as references to it. Other formats ignore it
+     */
+    abstract RunWriter createWriter(OutputStream out, BlobStore blobs);
+
+    /**
+     * @param blobs the store which the writer was given
+     */
+    abstract RunReader createReader(InputStream in, BlobStore blobs);
+}
@@ -0,0 +1,25 @@
+package org.dpinol;
+
+import java.io.IOException;
+
+/**
+ * Reads the lines of a sorted run, in order
+ */
+interface RunReader extends AutoCloseable {
+
+    /**
+     * @return the next line, or null at the end of the run. It may be only valid until the following call
+     */
+    FileLine getBigLine() throws IOException;
+
+    /**
+     * @return number of leading bytes which the last line read shares with the previous one, when it's known
+     * to be exactly their common prefix, or -1
+     */
+    default int getSharedPrefixLength() {
+        return -1;
+    }
+
+    @Override
+    void close() throws IOException;
+}
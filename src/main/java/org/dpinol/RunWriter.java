@@ -0,0 +1,19 @@
+package org.dpinol;
+
+import java.io.IOException;
+
+/**
+ * Writes the lines of a sorted run, in order
+ */
+interface RunWriter extends AutoCloseable {
+
+    void write(FileLine line) throws IOException;
+
+    /**
+     * Writes a whole line, held in length bytes starting at offset
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,216 @@
+package org.dpinol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts a file without a global merge, for inputs whose keys are well spread.
+ * Splitters are sampled from the input, and each line is written to the spill file of its key range.
+ * Then each partition is sorted on its own, in memory when its lines fit in its share of the budget (see
+ * {@link BigFileSorter#getInMemoryBytes}), and written directly at its offset of
+ * the output, which is the size of the preceding partitions. All partitions are sorted in parallel.
+ * Partitions which are too big because of skewed keys are sorted with a regular {@link BigFileSorter}
+ */
+class SampleSorter {
+    /**
+     * Number of lines of the input sampled per partition to pick the splitters
+     */
+    static final int SAMPLES_PER_PARTITION = 32;
+    /**
+     * Limits the number of spill files open at once while routing the lines. With more partitions, the input is
+     * read once per group of this many partitions
+     */
+    static final int MAX_OPEN_SPILLS = 1024;
+    private static final int SPILL_BUFFER_SIZE = 32 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final File input;
+    private final File output;
+    private final File tmpFolder;
+    private final SortOptions options;
+    private final long partitionBytes;
+
+    SampleSorter(File input, File output, File tmpFolder, SortOptions options) {
+        this(input, output, tmpFolder, options, getPartitionBytes(options));
+    }
+
+    /**
+     * @param partitionBytes expected size of each partition
+     */
+    SampleSorter(File input, File output, File tmpFolder, SortOptions options, long partitionBytes) {
+        this.input = input;
+        this.output = output;
+        this.tmpFolder = tmpFolder;
+        this.options = options;
+        this.partitionBytes = partitionBytes;
+    }
+
+    /**
+     * Partitions sorted concurrently must fit in the memory budget, with room for the sort entries and
+     * partitions bigger than expected
+     */
+    static long getPartitionBytes(SortOptions options) {
+        int threads = Math.max(1, options.getMergePartitions());
+        return Math.max(ChunkStore.SLAB_SIZE, options.getMemoryBudget() / (4L * threads));
+    }
+
+    void sort() throws Exception {
+        long numPartitions = (input.length() + partitionBytes - 1) / partitionBytes;
+        numPartitions = Math.min(Integer.MAX_VALUE / SAMPLES_PER_PARTITION,
+                Math.max(options.getMergePartitions(), numPartitions));
+        Splitters splitters = sample((int) numPartitions);
+        Global.log("Routing lines to " + splitters.getNumPartitions() + " partitions");
+        long[] partitionLines = new long[splitters.getNumPartitions()];
+        List<File> partitions = map(splitters, partitionLines);
+        sortPartitions(partitions, partitionLines);
+    }
+
+    /**
+     * @return splitters taken from lines spread evenly over the input
+     */
+    private Splitters sample(int numPartitions) throws IOException {
+        long inputBytes = input.length();
+        int numSamples = SAMPLES_PER_PARTITION * numPartitions;
+        List<FileLine> samples = new ArrayList<>(numSamples);
+        try (BigLineReader reader = new BigLineReader(input, options.isMappedInput())) {
+            for (int i = 0; i < numSamples; i++) {
+                long offset = inputBytes * i / numSamples;
+                if (reader.seekLineStart(offset) >= inputBytes) {
+                    break;
+                }
+                FileLine line = reader.getBigLine();
+                if (line != null) {
+                    samples.add(Splitters.copyHead(line));
+                }
+            }
+        }
+        return Splitters.fromSamples(samples, numPartitions);
+    }
+
+    /**
+     * Writes each line of the input to the spill file of its partition
+     *
+     * @param partitionLines gets the number of lines of each partition
+     */
+    private List<File> map(Splitters splitters, long[] partitionLines) throws IOException {
+        int numPartitions = splitters.getNumPartitions();
+        List<File> partitions = new ArrayList<>(numPartitions);
+        for (int first = 0; first < numPartitions; first += MAX_OPEN_SPILLS) {
+            map(splitters, first, Math.min(numPartitions, first + MAX_OPEN_SPILLS), partitions, partitionLines);
+        }
+        return partitions;
+    }
+
+    /**
+     * Reads the whole input, and writes the lines of the partitions from first to end (exclusive)
+     * to their spill files, which are added to partitions
+     */
+    private void map(Splitters splitters, int first, int end, List<File> partitions, long[] partitionLines)
+            throws IOException {
+        OutputStream[] spills = new OutputStream[end - first];
+        try (BigLineReader reader = new BigLineReader(input, options.isMappedInput())) {
+            for (int p = first; p < end; p++) {
+                File partition = File.createTempFile("partition_tmp", Integer.toString(p), tmpFolder);
+                partitions.add(partition);
+                spills[p - first] = new BufferedOutputStream(new FileOutputStream(partition), SPILL_BUFFER_SIZE);
+            }
+            FileLine line;
+            while ((line = reader.getBigLine()) != null) {
+                int p = splitters.partitionOf(line);
+                if (p < first || p >= end) {
+                    continue;
+                }
+                partitionLines[p]++;
+                OutputStream spill = spills[p - first];
+                line.write(spill);
+                spill.write(Global.LINE_SEPARATOR_BYTES);
+            }
+        } finally {
+            for (OutputStream spill : spills) {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts each partition directly into its region of the output
+     */
+    private void sortPartitions(List<File> partitions, long[] partitionLines) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, options.getMergePartitions()));
+        try (FileChannel outChannel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> futures = new ArrayList<>();
+            long outputOffset = 0;
+            for (int p = 0; p < partitions.size(); p++) {
+                File partition = partitions.get(p);
+                long numLines = partitionLines[p];
+                long offset = outputOffset;
+                outputOffset += partition.length();
+                futures.add(executorService.submit(() -> {
+                    sortPartition(partition, numLines, outChannel, offset);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private void sortPartition(File partition, long numLines, FileChannel outChannel, long offset)
+            throws Exception {
+        long numBytes = partition.length();
+        //up to one partition per thread is sorted at once, so each of them gets its share of the budget
+        long memoryBudget = options.getMemoryBudget() / Math.max(1, options.getMergePartitions());
+        if (BigFileSorter.getInMemoryBytes(numBytes, numLines) <= memoryBudget) {
+            ChunkStore store = new ChunkStore((int) Math.min(Integer.MAX_VALUE / ChunkStore.ENTRY_LONGS, numLines),
+                    options.isOffHeapSlabs());
+            //long lines are read from the partition while writing them, so it's closed afterwards
+            try (BigLineReader reader = new BigLineReader(partition, options.isMappedInput())) {
+                FileLine line;
+                while ((line = reader.getBigLine()) != null) {
+                    store.add(line);
+                }
+                store.sort(options.getSortEngine());
+                try (OutputStream out = new AsyncChannelOutputStream(outChannel, offset, false,
+                        options.getWriteBufferSize(), options.getWriteBuffers())) {
+                    store.writeTo(out);
+                }
+            }
+        } else {
+            Global.log("Partition " + partition + " has " + numBytes / 1_024 + "kB, merge sorting it");
+            File sorted = File.createTempFile("partition_sorted", null, tmpFolder);
+            new BigFileSorter(partition, sorted, tmpFolder,
+                    options.copy().setSampleSort(false).setMemoryBudget(memoryBudget)).sort();
+            //positional writes, so that other partitions can be written concurrently
+            try (FileChannel in = FileChannel.open(sorted.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+                long position = offset;
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += outChannel.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            }
+            sorted.delete();
+        }
+        partition.delete();
+    }
+}
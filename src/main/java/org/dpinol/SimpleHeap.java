@@ -1,9 +1,17 @@
 package org.dpinol;
 
+import java.util.Arrays;
+
 /**
  * Heap to sort a collection of objects
  */
 public class SimpleHeap<E extends Comparable<E>> {
+    /**
+     * Slots initially allocated. The array doubles as needed up to the capacity, so that a big capacity does
+     * not allocate memory which may never be used
+     */
+    static final int INITIAL_SLOTS = 16;
+
     private int size = 0;
     private Object[] data;
     private final int capacity;
@@ -13,7 +21,7 @@ public class SimpleHeap<E extends Comparable<E>> {
      * @param capacity maximum number of objects to sort
      */
     public SimpleHeap(int capacity) {
-        data = new Object[capacity];
+        data = new Object[Math.min(capacity, INITIAL_SLOTS)];
         this.capacity = capacity;
     }
 
@@ -26,6 +34,9 @@ public class SimpleHeap<E extends Comparable<E>> {
         if (size >= capacity) {
             throw new IllegalStateException("Head is full");
         }
+        if (size == data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(capacity, 2L * data.length));
+        }
         int k = size;
         while (k > 0) {
             int parent = (k - 1) >>> 1;
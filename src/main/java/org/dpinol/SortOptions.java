@@ -0,0 +1,415 @@
+package org.dpinol;
+
+/**
+ * Tunables of a {@link BigFileSorter} job.
+ * Defaults can be overridden with "sorter.*" system properties (see {@link #fromSystemProperties()}),
+ * so that they can be changed without recompiling
+ */
+public class SortOptions {
+    private boolean mappedInput = false;
+    private boolean offHeapSlabs = false;
+    private ChunkSortEngine sortEngine = ChunkSortEngine.MULTIKEY_QUICKSORT;
+    private int maxMergeFanIn = 256;
+    private int mergePartitions = Runtime.getRuntime().availableProcessors();
+    private boolean sampleSort = false;
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    private boolean replacementSelection = false;
+    private RunCodec runCodec = RunCodec.NONE;
+    private RunFormat runFormat = RunFormat.TEXT;
+    private int writeBuffers = 3;
+    private int writeBufferSize = 1024 * 1024;
+    private long readAheadBudget = Math.min(64 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+    private boolean longLineBlobs = false;
+    private WaitStrategy queueWaitStrategy = WaitStrategy.PARK;
+    private int inputRanges = 0;
+    private int sortWorkers = 0;
+    private boolean parallelChunkSort = true;
+    private int backgroundMergeFanIn = 0;
+    private boolean inMemorySort = true;
+    /* not a tunable, but the store of the running job */
+    private BlobStore blobStore;
+
+    /**
+     * @return the default options, overridden by the "sorter.*" system properties which are set
+     */
+    public static SortOptions fromSystemProperties() {
+        SortOptions options = new SortOptions();
+        options.mappedInput = Boolean.parseBoolean(System.getProperty("sorter.mappedInput",
+                Boolean.toString(options.mappedInput)));
+        options.offHeapSlabs = Boolean.parseBoolean(System.getProperty("sorter.offHeapSlabs",
+                Boolean.toString(options.offHeapSlabs)));
+        options.sortEngine = ChunkSortEngine.valueOf(System.getProperty("sorter.sortEngine",
+                options.sortEngine.name()));
+        options.maxMergeFanIn = Integer.getInteger("sorter.maxMergeFanIn", options.maxMergeFanIn);
+        options.mergePartitions = Integer.getInteger("sorter.mergePartitions", options.mergePartitions);
+        options.sampleSort = Boolean.parseBoolean(System.getProperty("sorter.sampleSort",
+                Boolean.toString(options.sampleSort)));
+        options.replacementSelection = Boolean.parseBoolean(System.getProperty("sorter.replacementSelection",
+                Boolean.toString(options.replacementSelection)));
+        options.runCodec = RunCodec.valueOf(System.getProperty("sorter.runCodec", options.runCodec.name()));
+        options.runFormat = RunFormat.valueOf(System.getProperty("sorter.runFormat", options.runFormat.name()));
+        options.writeBuffers = Integer.getInteger("sorter.writeBuffers", options.writeBuffers);
+        String writeBufferSize = System.getProperty("sorter.writeBufferSize");
+        if (writeBufferSize != null) {
+            options.writeBufferSize = (int) parseBytes(writeBufferSize);
+        }
+        options.longLineBlobs = Boolean.parseBoolean(System.getProperty("sorter.longLineBlobs",
+                Boolean.toString(options.longLineBlobs)));
+        options.queueWaitStrategy = WaitStrategy.valueOf(System.getProperty("sorter.queueWaitStrategy",
+                options.queueWaitStrategy.name()));
+        options.inputRanges = Integer.getInteger("sorter.inputRanges", options.inputRanges);
+        options.sortWorkers = Integer.getInteger("sorter.sortWorkers", options.sortWorkers);
+        options.backgroundMergeFanIn = Integer.getInteger("sorter.backgroundMergeFanIn",
+                options.backgroundMergeFanIn);
+        options.parallelChunkSort = Boolean.parseBoolean(System.getProperty("sorter.parallelChunkSort",
+                Boolean.toString(options.parallelChunkSort)));
+        options.inMemorySort = Boolean.parseBoolean(System.getProperty("sorter.inMemorySort",
+                Boolean.toString(options.inMemorySort)));
+        String readAheadBudget = System.getProperty("sorter.readAheadBudget");
+        if (readAheadBudget != null) {
+            options.readAheadBudget = parseBytes(readAheadBudget);
+        }
+        String memoryBudget = System.getProperty("sorter.memoryBudget");
+        if (memoryBudget != null) {
+            options.memoryBudget = parseBytes(memoryBudget);
+        }
+        return options;
+    }
+
+    /**
+     * @param size a number of bytes, optionally followed by k, m or g (eg. 512m)
+     */
+    static long parseBytes(String size) {
+        String trimmed = size.trim().toLowerCase();
+        int shift = 0;
+        switch (trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            default:
+                return Long.parseLong(trimmed);
+        }
+        return Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()) << shift;
+    }
+
+    SortOptions copy() {
+        SortOptions copy = new SortOptions();
+        copy.mappedInput = mappedInput;
+        copy.offHeapSlabs = offHeapSlabs;
+        copy.sortEngine = sortEngine;
+        copy.maxMergeFanIn = maxMergeFanIn;
+        copy.mergePartitions = mergePartitions;
+        copy.sampleSort = sampleSort;
+        copy.memoryBudget = memoryBudget;
+        copy.replacementSelection = replacementSelection;
+        copy.runCodec = runCodec;
+        copy.runFormat = runFormat;
+        copy.writeBuffers = writeBuffers;
+        copy.writeBufferSize = writeBufferSize;
+        copy.readAheadBudget = readAheadBudget;
+        copy.longLineBlobs = longLineBlobs;
+        copy.queueWaitStrategy = queueWaitStrategy;
+        copy.inputRanges = inputRanges;
+        copy.sortWorkers = sortWorkers;
+        copy.parallelChunkSort = parallelChunkSort;
+        copy.backgroundMergeFanIn = backgroundMergeFanIn;
+        copy.inMemorySort = inMemorySort;
+        return copy;
+    }
+
+    /**
+     * @return true if input files are read by mapping them in memory, instead of copying them to a buffer
+     */
+    public boolean isMappedInput() {
+        return mappedInput;
+    }
+
+    public SortOptions setMappedInput(boolean mappedInput) {
+        this.mappedInput = mappedInput;
+        return this;
+    }
+
+    /**
+     * @return true if the slabs of {@link ChunkStore} are allocated out of the java heap
+     */
+    public boolean isOffHeapSlabs() {
+        return offHeapSlabs;
+    }
+
+    public SortOptions setOffHeapSlabs(boolean offHeapSlabs) {
+        this.offHeapSlabs = offHeapSlabs;
+        return this;
+    }
+
+    /**
+     * @return the algorithm used to sort each chunk before writing it to a temporary file
+     */
+    public ChunkSortEngine getSortEngine() {
+        return sortEngine;
+    }
+
+    public SortOptions setSortEngine(ChunkSortEngine sortEngine) {
+        this.sortEngine = sortEngine;
+        return this;
+    }
+
+    /**
+     * @return maximum number of files merged at once. More runs require intermediate merge passes
+     */
+    public int getMaxMergeFanIn() {
+        return maxMergeFanIn;
+    }
+
+    public SortOptions setMaxMergeFanIn(int maxMergeFanIn) {
+        this.maxMergeFanIn = maxMergeFanIn;
+        return this;
+    }
+
+    /**
+     * @return number of key ranges merged in parallel by the final merge. With 1, a single thread merges all lines
+     */
+    public int getMergePartitions() {
+        return mergePartitions;
+    }
+
+    public SortOptions setMergePartitions(int mergePartitions) {
+        this.mergePartitions = mergePartitions;
+        return this;
+    }
+
+    /**
+     * @return true if lines are routed to key range partitions which are sorted on their own (see
+     * {@link SampleSorter}), instead of sorting chunks and merging them
+     */
+    public boolean isSampleSort() {
+        return sampleSort;
+    }
+
+    public SortOptions setSampleSort(boolean sampleSort) {
+        this.sampleSort = sampleSort;
+        return this;
+    }
+
+    /**
+     * @return bytes which the lines held in memory may use, shared by all the sorters of the job.
+     * It sizes the sorted runs, so a bigger budget creates fewer runs
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public SortOptions setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * @return true if runs are generated by replacement selection, which makes them longer than the memory
+     * budget, instead of sorting chunks which fill it
+     */
+    public boolean isReplacementSelection() {
+        return replacementSelection;
+    }
+
+    public SortOptions setReplacementSelection(boolean replacementSelection) {
+        this.replacementSelection = replacementSelection;
+        return this;
+    }
+
+    /**
+     * @return how the temporary runs are compressed
+     */
+    public RunCodec getRunCodec() {
+        return runCodec;
+    }
+
+    public SortOptions setRunCodec(RunCodec runCodec) {
+        this.runCodec = runCodec;
+        return this;
+    }
+
+    /**
+     * @return how lines are laid out in the temporary runs. It can be combined with any {@link RunCodec}
+     */
+    public RunFormat getRunFormat() {
+        return runFormat;
+    }
+
+    public SortOptions setRunFormat(RunFormat runFormat) {
+        this.runFormat = runFormat;
+        return this;
+    }
+
+    /**
+     * @return number of buffers of each output file which rotate between the thread which fills them and the one
+     * which writes them (see {@link AsyncChannelOutputStream}). At least 2
+     */
+    public int getWriteBuffers() {
+        return writeBuffers;
+    }
+
+    public SortOptions setWriteBuffers(int writeBuffers) {
+        this.writeBuffers = writeBuffers;
+        return this;
+    }
+
+    /**
+     * @return bytes of each output buffer. Bigger ones make fewer and larger writes
+     */
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public SortOptions setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    /**
+     * @return bytes buffered ahead of the merge, split evenly among the runs merged at once (see
+     * {@link ReadAheadChannel}). With 0, each run is read when the merge needs its next bytes.
+     * By default 64MB, or a quarter of the heap if it's smaller
+     */
+    public long getReadAheadBudget() {
+        return readAheadBudget;
+    }
+
+    public SortOptions setReadAheadBudget(long readAheadBudget) {
+        this.readAheadBudget = readAheadBudget;
+        return this;
+    }
+
+    /**
+     * @return true if lines longer than {@link FileLine#LENGTH_THRESHOLD} are written once to a {@link BlobStore},
+     * and binary runs only reference them. Other run formats copy them
+     */
+    public boolean isLongLineBlobs() {
+        return longLineBlobs;
+    }
+
+    public SortOptions setLongLineBlobs(boolean longLineBlobs) {
+        this.longLineBlobs = longLineBlobs;
+        return this;
+    }
+
+    /**
+     * @return how the sorters wait for the reader of the input to hand them lines, and the other way round
+     */
+    public WaitStrategy getQueueWaitStrategy() {
+        return queueWaitStrategy;
+    }
+
+    public SortOptions setQueueWaitStrategy(WaitStrategy queueWaitStrategy) {
+        this.queueWaitStrategy = queueWaitStrategy;
+        return this;
+    }
+
+    /**
+     * @return number of ranges of whole lines in which the input is split, each of which is parsed by its own
+     * thread and sorted by its own sorter. With 1, a single thread reads the input for all the sorters.
+     * With 0, it's chosen when the job starts (see {@link WorkerPlan})
+     */
+    public int getInputRanges() {
+        return inputRanges;
+    }
+
+    public SortOptions setInputRanges(int inputRanges) {
+        this.inputRanges = inputRanges;
+        return this;
+    }
+
+    /**
+     * @return number of sorters fed by the single reader of the input, when there's a single input range.
+     * With 0, it's chosen when the job starts (see {@link WorkerPlan})
+     */
+    public int getSortWorkers() {
+        return sortWorkers;
+    }
+
+    public SortOptions setSortWorkers(int sortWorkers) {
+        this.sortWorkers = sortWorkers;
+        return this;
+    }
+
+    /**
+     * @return true if each chunk is sorted with the threads of the common fork/join pool which are idle,
+     * instead of only with the thread of its sorter
+     */
+    public boolean isParallelChunkSort() {
+        return parallelChunkSort;
+    }
+
+    public SortOptions setParallelChunkSort(boolean parallelChunkSort) {
+        this.parallelChunkSort = parallelChunkSort;
+        return this;
+    }
+
+    /**
+     * @return number of runs of the same level which are merged in the background into a run of the next level,
+     * while runs are still being generated (see {@link RunCascade}). Each level writes all its bytes once more,
+     * but the final merge gets fewer runs. With 0, runs are only merged once all of them have been generated
+     */
+    public int getBackgroundMergeFanIn() {
+        return backgroundMergeFanIn;
+    }
+
+    public SortOptions setBackgroundMergeFanIn(int backgroundMergeFanIn) {
+        this.backgroundMergeFanIn = backgroundMergeFanIn;
+        return this;
+    }
+
+    /**
+     * @return true if inputs which fit in the memory budget are sorted in memory and written straight to the
+     * output, without runs nor merges
+     */
+    public boolean isInMemorySort() {
+        return inMemorySort;
+    }
+
+    public SortOptions setInMemorySort(boolean inMemorySort) {
+        this.inMemorySort = inMemorySort;
+        return this;
+    }
+
+    /**
+     * @return the store where long lines are written, while a job with {@link #isLongLineBlobs()} runs. Not copied
+     */
+    BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    SortOptions setBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "mappedInput=" + mappedInput
+                + ", offHeapSlabs=" + offHeapSlabs
+                + ", sortEngine=" + sortEngine
+                + ", maxMergeFanIn=" + maxMergeFanIn
+                + ", mergePartitions=" + mergePartitions
+                + ", sampleSort=" + sampleSort
+                + ", memoryBudget=" + memoryBudget / 1_024 + "kB"
+                + ", replacementSelection=" + replacementSelection
+                + ", runCodec=" + runCodec
+                + ", runFormat=" + runFormat
+                + ", writeBuffers=" + writeBuffers
+                + ", writeBufferSize=" + writeBufferSize / 1_024 + "kB"
+                + ", readAheadBudget=" + readAheadBudget / 1_024 + "kB"
+                + ", longLineBlobs=" + longLineBlobs
+                + ", queueWaitStrategy=" + queueWaitStrategy
+                + ", inputRanges=" + inputRanges
+                + ", sortWorkers=" + sortWorkers
+                + ", parallelChunkSort=" + parallelChunkSort
+                + ", backgroundMergeFanIn=" + backgroundMergeFanIn
+                + ", inMemorySort=" + inMemorySort;
+    }
+}
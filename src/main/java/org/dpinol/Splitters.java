@@ -0,0 +1,74 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Sorted keys which split lines in key ranges (partitions). Partition p holds the lines which are not smaller
+ * than splitter p - 1 and smaller than splitter p
+ */
+class Splitters {
+    private final List<FileLine> keys;
+
+    private Splitters(List<FileLine> keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * @param samples lines spread over the input. They're sorted by this method
+     * @return up to numPartitions - 1 splitters which divide the samples in equal parts
+     */
+    static Splitters fromSamples(List<FileLine> samples, int numPartitions) {
+        Collections.sort(samples);
+        List<FileLine> keys = new ArrayList<>(Math.max(0, numPartitions - 1));
+        for (int p = 1; p < numPartitions && !samples.isEmpty(); p++) {
+            keys.add(samples.get(p * samples.size() / numPartitions));
+        }
+        return new Splitters(keys);
+    }
+
+    /**
+     * Any sequence of bytes is a valid splitter, so for long lines only the head is kept
+     */
+    static FileLine copyHead(FileLine line) throws IOException {
+        Iterator<ByteBuffer> iterator = line.getByteIterator();
+        ByteBuffer head = iterator.hasNext() ? iterator.next() : ByteBuffer.allocate(0);
+        byte[] bytes = new byte[head.remaining()];
+        head.duplicate().get(bytes);
+        return new ByteLine(bytes);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    FileLine get(int index) {
+        return keys.get(index);
+    }
+
+    int getNumPartitions() {
+        return keys.size() + 1;
+    }
+
+    /**
+     * @return index of the partition of line, by binary search
+     */
+    int partitionOf(FileLine line) {
+        int lo = 0;
+        int hi = keys.size();
+        //first splitter greater than the line
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (line.compareTo(keys.get(mid)) >= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,88 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads lines separated by {@link Global#LINE_SEPARATOR} from a stream, eg. a decompressed run.
+ * Since the stream can't be read again, lines are whole in memory: the buffer grows to fit the longest line.
+ * Each line is a view of the buffer, so it's only valid until the next one is read
+ */
+class StreamRunReader implements RunReader {
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    /* start of the next line */
+    private int start = 0;
+    /* end of the valid bytes */
+    private int end = 0;
+    /* bytes before it are known not to start a separator */
+    private int scanned = 0;
+    private boolean eof = false;
+
+    StreamRunReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public FileLine getBigLine() throws IOException {
+        while (true) {
+            int nlPos = ByteScanner.indexOf(buffer, scanned, end, Global.LINE_SEPARATOR_BYTES);
+            if (nlPos >= 0) {
+                FileLine line = new ByteLine(slice(start, nlPos));
+                start = nlPos + Global.LINE_SEPARATOR_BYTES.length;
+                scanned = start;
+                return line;
+            }
+            //a separator might start in the last bytes, and be completed by the next read
+            scanned = Math.max(start, end - Global.LINE_SEPARATOR_BYTES.length + 1);
+            if (eof) {
+                if (start == end) {
+                    return null;
+                }
+                FileLine line = new ByteLine(slice(start, end));
+                start = end;
+                scanned = end;
+                return line;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Reads more bytes, after moving the current line to the start of the buffer, or growing it
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        } else if (end == bytes.length) {
+            byte[] grown = new byte[bytes.length * 2];
+            System.arraycopy(bytes, 0, grown, 0, end);
+            bytes = grown;
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        int read = in.read(bytes, end, bytes.length - end);
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to).position(from);
+        return slice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
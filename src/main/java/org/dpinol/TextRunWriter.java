@@ -0,0 +1,35 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes each line followed by {@link Global#LINE_SEPARATOR}, which is the format of the input and the output
+ */
+class TextRunWriter implements RunWriter {
+    private final OutputStream out;
+
+    /**
+     * @param out it should be buffered. It's closed by {@link #close()}
+     */
+    TextRunWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(FileLine line) throws IOException {
+        line.write(out);
+        out.write(Global.LINE_SEPARATOR_BYTES);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        out.write(Global.LINE_SEPARATOR_BYTES);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
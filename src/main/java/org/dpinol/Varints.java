@@ -0,0 +1,24 @@
+package org.dpinol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Unsigned numbers encoded in 7 bits per byte, least significant first, with the highest bit set on all bytes
+ * but the last one. Small numbers like the length of most lines take a single byte
+ */
+final class Varints {
+    private Varints() {
+    }
+
+    /**
+     * Writes the bytes one at a time, since run writers are always buffered and most values take 1 or 2 bytes
+     */
+    static void write(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,52 @@
+package org.dpinol;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a {@link RingBuffer} which is full or empty. Spinning reacts sooner, but burns a core
+ * per waiting thread, so it's only worth it when there are more cores than threads
+ */
+public enum WaitStrategy {
+    /**
+     * Retries right away
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(int attempt) {
+        }
+    },
+    /**
+     * Lets other threads run before retrying
+     */
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            Thread.yield();
+        }
+    },
+    /**
+     * Spins and yields for a few attempts, and then sleeps for {@link #PARK_NANOS} between attempts
+     */
+    PARK {
+        @Override
+        void idle(int attempt) {
+            if (attempt < SPIN_ATTEMPTS) {
+                return;
+            }
+            if (attempt < SPIN_ATTEMPTS + YIELD_ATTEMPTS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    };
+
+    static final int SPIN_ATTEMPTS = 100;
+    static final int YIELD_ATTEMPTS = 10;
+    static final long PARK_NANOS = 50_000;
+
+    /**
+     * @param attempt number of times it has already waited for the same operation
+     */
+    abstract void idle(int attempt);
+}
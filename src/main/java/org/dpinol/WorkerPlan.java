@@ -0,0 +1,82 @@
+package org.dpinol;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Number of threads which parse the input and sort its chunks, chosen from the available cores and the time
+ * that parsing and sorting a sample of the input take.
+ * Either a single reader feeds as many sorters as needed to keep up with it, or the input is split in ranges
+ * (see {@link SortOptions#getInputRanges()}), each of which has a reader and a sorter of its own
+ */
+class WorkerPlan {
+    /**
+     * Bytes at the start of the input which are parsed and sorted to measure their cost
+     */
+    static final int SAMPLE_BYTES = 4 * 1024 * 1024;
+    /**
+     * The sample is cut short when its lines hold more than the memory budget divided by this
+     */
+    static final int SAMPLE_BUDGET_SHARE = 4;
+
+    final int inputRanges;
+    final int sortWorkers;
+
+    WorkerPlan(int inputRanges, int sortWorkers) {
+        this.inputRanges = inputRanges;
+        this.sortWorkers = sortWorkers;
+    }
+
+    /**
+     * Parses the start of the input into a {@link ChunkStore} and sorts it on the current thread, and chooses
+     * the plan for its cost. The sample is bounded by the memory budget
+     */
+    static WorkerPlan measure(File input, SortOptions options, int cores) throws IOException {
+        long parseNanos;
+        long sortNanos;
+        int sampleLines;
+        long maxMemory = options.getMemoryBudget() / SAMPLE_BUDGET_SHARE;
+        //long lines are compared by reading the input, so it must be open until they're sorted
+        try (BigLineReader reader = new BigLineReader(input.toPath(), 0, SAMPLE_BYTES, options.isMappedInput())) {
+            ChunkStore store = new ChunkStore(BigFileSorter.INITIAL_LINES_PER_SORTER, options.isOffHeapSlabs());
+            long start = System.nanoTime();
+            FileLine line;
+            while ((store.isEmpty() || store.getMemoryUsed() < maxMemory) && (line = reader.getBigLine()) != null) {
+                store.add(line);
+            }
+            long parsed = System.nanoTime();
+            store.sort(options.getSortEngine());
+            parseNanos = parsed - start;
+            sortNanos = System.nanoTime() - parsed;
+            sampleLines = store.size();
+        }
+        WorkerPlan plan = choose(cores, parseNanos, sortNanos);
+        Global.log("Parsing " + sampleLines + " lines of the sample took " + parseNanos / 1_000 + "us, sorting them "
+                + sortNanos / 1_000 + "us, so with " + cores + " cores: " + plan);
+        return plan;
+    }
+
+    /**
+     * @return the plan which parses and sorts the most bytes per second, with at most one thread per core
+     */
+    static WorkerPlan choose(int cores, long parseNanos, long sortNanos) {
+        parseNanos = Math.max(1, parseNanos);
+        sortNanos = Math.max(1, sortNanos);
+        //one reader, with enough sorters to keep up with it
+        long sortersToKeepUp = (sortNanos + parseNanos - 1) / parseNanos;
+        int sorters = (int) Math.min(Math.max(1, cores - 1), sortersToKeepUp);
+        double singleReaderRate = Math.min(1.0 / parseNanos, (double) sorters / sortNanos);
+        //pairs of reader and sorter
+        int ranges = cores / 2;
+        double rangesRate = (double) ranges / Math.max(parseNanos, sortNanos);
+        if (ranges > 1 && rangesRate > singleReaderRate) {
+            return new WorkerPlan(ranges, ranges);
+        }
+        return new WorkerPlan(1, sorters);
+    }
+
+    @Override
+    public String toString() {
+        return inputRanges + " input ranges, " + sortWorkers + " sorters";
+    }
+}
@@ -0,0 +1,158 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AsyncChannelOutputStreamTest {
+    private final Random rnd = new Random(1);
+
+    @Test
+    public void writesInOrder() throws Exception {
+        byte[] bytes = new byte[10_000];
+        rnd.nextBytes(bytes);
+        File file = createTempFile();
+        try (AsyncChannelOutputStream out = AsyncChannelOutputStream.create(file,
+                new SortOptions().setWriteBufferSize(100).setWriteBuffers(2))) {
+            int pos = 0;
+            while (pos < bytes.length) {
+                if (rnd.nextBoolean()) {
+                    out.write(bytes[pos++]);
+                } else {
+                    int len = Math.min(bytes.length - pos, rnd.nextInt(350));
+                    out.write(bytes, pos, len);
+                    pos += len;
+                }
+            }
+        }
+        assertArrayEquals(bytes, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Direct buffers bigger than the write buffers and than the scratch of {@link Bytes#write}, to this stream
+     * and to one which only takes arrays
+     */
+    @Test
+    public void directBuffers() throws Exception {
+        byte[] bytes = new byte[Bytes.SCRATCH_SIZE * 3 + 5];
+        rnd.nextBytes(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.position(5);
+        byte[] expected = Arrays.copyOfRange(bytes, 5, bytes.length);
+        File file = createTempFile();
+        try (AsyncChannelOutputStream out = AsyncChannelOutputStream.create(file,
+                new SortOptions().setWriteBufferSize(1_000).setWriteBuffers(2))) {
+            Bytes.write(direct, out);
+        }
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+        ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
+        Bytes.write(direct, arrayOut);
+        assertArrayEquals(expected, arrayOut.toByteArray());
+        assertEquals(5, direct.position());
+    }
+
+    @Test
+    public void smallFile() throws Exception {
+        File file = createTempFile();
+        try (AsyncChannelOutputStream out = AsyncChannelOutputStream.create(file, new SortOptions())) {
+            out.write("hello".getBytes(Global.ENCODING));
+        }
+        assertEquals("hello", new String(Files.readAllBytes(file.toPath()), Global.ENCODING));
+    }
+
+    @Test
+    public void flushWaitsForWrites() throws Exception {
+        File file = createTempFile();
+        byte[] bytes = new byte[1_000];
+        rnd.nextBytes(bytes);
+        try (AsyncChannelOutputStream out = AsyncChannelOutputStream.create(file,
+                new SortOptions().setWriteBufferSize(64).setWriteBuffers(3))) {
+            out.write(bytes);
+            out.flush();
+            assertArrayEquals(bytes, Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void concurrentRegions() throws Exception {
+        File file = createTempFile();
+        byte[] first = new byte[5_000];
+        byte[] second = new byte[3_000];
+        Arrays.fill(first, (byte) 'a');
+        Arrays.fill(second, (byte) 'b');
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            AsyncChannelOutputStream out1 = new AsyncChannelOutputStream(channel, 0, false, 128, 2);
+            AsyncChannelOutputStream out2 = new AsyncChannelOutputStream(channel, first.length, false, 128, 2);
+            out2.write(second);
+            out1.write(first);
+            out2.close();
+            out1.close();
+        }
+        byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void transferFrom() throws Exception {
+        byte[] source = new byte[50_000];
+        rnd.nextBytes(source);
+        File sourceFile = createTempFile();
+        Files.write(sourceFile.toPath(), source);
+        File file = createTempFile();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (FileChannel src = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            //the second stream makes the first one write from an offset of the shared channel
+            AsyncChannelOutputStream out = new AsyncChannelOutputStream(channel, 10, false, 1_000, 2);
+            AsyncChannelOutputStream other = new AsyncChannelOutputStream(channel, 0, false, 1_000, 2);
+            other.write(source, 0, 10);
+            expected.write(source, 0, 10);
+            for (int i = 0; i < 20; i++) {
+                int offset = rnd.nextInt(source.length / 2);
+                int length = rnd.nextBoolean() ? rnd.nextInt(1_000) : rnd.nextInt(source.length / 2);
+                out.transferFrom(src, offset, length);
+                expected.write(source, offset, length);
+                out.write(source, 0, 7);
+                expected.write(source, 0, 7);
+            }
+            out.close();
+            other.close();
+        }
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void writeErrorIsThrown() throws Exception {
+        File file = createTempFile();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        AsyncChannelOutputStream out = new AsyncChannelOutputStream(channel, 0, true, 16, 2);
+        try {
+            out.write(new byte[100]);
+            out.close();
+            fail("writing to a read only channel");
+        } catch (IOException e) {
+            //expected, either when handing off a buffer or on close
+        }
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("async", null);
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -8,13 +8,29 @@ import org.junit.Test;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by dani on 28/09/16.
  */
 public class BigFileSorterTest {
 
+    /**
+     * Enough short lines to need several runs with the smallest budget
+     */
+    private static final int SHORT_LINES = BigFileSorter.QUEUE_BUCKET_SIZE * 5 + 3;
+    private static final int SHORT_LEN = 3;
+    /**
+     * Lines longer than {@link FileLine#LENGTH_THRESHOLD}, which are read again from the input
+     */
+    private static final int LONG_LINES = 300;
+    private static final int LONG_LEN = Global.BUFFER_SIZE * 2;
+
     private File inputFile, outputFile;
 
     @Before
@@ -52,13 +68,318 @@ public class BigFileSorterTest {
         checkLines(outputFile, NUM_LINES, MIN_LEN);
     }
 
+    @Test
+    public void mappedShuffle() throws Exception {
+        assertSorts(new SortOptions().setMappedInput(true), 500, SHORT_LEN);
+    }
+
+    @Test
+    public void manyRuns() throws Exception {
+        //the smallest budget flushes a run per bucket
+        assertSorts(new SortOptions().setMemoryBudget(0), BigFileSorter.QUEUE_BUCKET_SIZE * 7 + 3, SHORT_LEN);
+    }
+
+    @Test
+    public void boundedFanIn() throws Exception {
+        assertSorts(new SortOptions().setMaxMergeFanIn(2).setMemoryBudget(0), BigFileSorter.QUEUE_BUCKET_SIZE * 7 + 3,
+                SHORT_LEN);
+    }
+
+    @Test
+    public void partitionedMerge() throws Exception {
+        assertSorts(new SortOptions().setMergePartitions(7).setMemoryBudget(0), BigFileSorter.QUEUE_BUCKET_SIZE * 3 + 3,
+                SHORT_LEN);
+        assertSorts(new SortOptions().setMergePartitions(3).setInMemorySort(false), 200, Global.BUFFER_SIZE);
+    }
+
+    @Test
+    public void sampleSort() throws Exception {
+        assertSorts(new SortOptions().setSampleSort(true).setMergePartitions(4),
+                BigFileSorter.QUEUE_BUCKET_SIZE * 2 + 3, SHORT_LEN);
+    }
+
+    @Test
+    public void sampleSortSkewedKeys() throws Exception {
+        int NUM_LINES = 2_000;
+        //half of the lines are equal, so they all go to the same partition, whose 1000 lines are too many to
+        //sort in memory
+        try (Writer writer = new FileWriter(inputFile)) {
+            for (int i = 0; i < NUM_LINES; i++) {
+                writer.write(i % 2 == 0 ? "skewed" : Utils.createLine(SHORT_LEN + 1 + i % 7));
+                writer.write(Global.LINE_SEPARATOR);
+            }
+        }
+        SampleSorter sampleSorter = new SampleSorter(inputFile, outputFile, inputFile.getParentFile(),
+                new SortOptions().setMergePartitions(3)
+                        .setMemoryBudget(3 * BigFileSorter.getInMemoryBytes(4_000, 400)), 1_000);
+        sampleSorter.sort();
+        assertSortedOutput();
+    }
+
+    /**
+     * More partitions than spill files which can be open at once, so the input is routed in several passes
+     */
+    @Test
+    public void sampleSortManyPartitions() throws Exception {
+        Utils.writeRandomLines(inputFile, 20_000, SHORT_LEN);
+        long partitionBytes = inputFile.length() / (SampleSorter.MAX_OPEN_SPILLS * 2);
+        SampleSorter sampleSorter = new SampleSorter(inputFile, outputFile, inputFile.getParentFile(),
+                new SortOptions().setMergePartitions(3), partitionBytes);
+        sampleSorter.sort();
+        assertSortedOutput();
+    }
+
+    @Test
+    public void replacementSelection() throws Exception {
+        assertSorts(new SortOptions().setReplacementSelection(true).setMemoryBudget(0),
+                BigFileSorter.QUEUE_BUCKET_SIZE * 3 + 3, SHORT_LEN);
+        assertSorts(new SortOptions().setReplacementSelection(true).setInMemorySort(false), 50, Global.BUFFER_SIZE);
+    }
+
+    @Test
+    public void compressedRuns() throws Exception {
+        for (RunCodec codec : RunCodec.values()) {
+            //with intermediate merges, which read and write compressed runs
+            assertSorts(new SortOptions().setRunCodec(codec).setMemoryBudget(0).setMaxMergeFanIn(3), SHORT_LINES,
+                    SHORT_LEN);
+        }
+        assertSorts(new SortOptions().setRunCodec(RunCodec.LZ).setReplacementSelection(true).setInMemorySort(false),
+                50, Global.BUFFER_SIZE);
+    }
+
+    @Test
+    public void frontCodedRuns() throws Exception {
+        for (RunCodec codec : new RunCodec[]{RunCodec.NONE, RunCodec.LZ}) {
+            assertSorts(new SortOptions().setRunFormat(RunFormat.FRONT_CODED).setRunCodec(codec)
+                    .setMemoryBudget(0).setMaxMergeFanIn(3), SHORT_LINES, SHORT_LEN);
+        }
+        assertSorts(new SortOptions().setRunFormat(RunFormat.FRONT_CODED).setInMemorySort(false),
+                50, Global.BUFFER_SIZE);
+    }
+
+    @Test
+    public void binaryRuns() throws Exception {
+        for (RunFormat format : new RunFormat[]{RunFormat.BINARY, RunFormat.BINARY_KEY_PREFIX}) {
+            assertSorts(new SortOptions().setRunFormat(format).setMemoryBudget(0).setMaxMergeFanIn(3), SHORT_LINES,
+                    SHORT_LEN);
+        }
+        assertSorts(new SortOptions().setRunFormat(RunFormat.BINARY_KEY_PREFIX).setRunCodec(RunCodec.LZ)
+                .setInMemorySort(false), 50, Global.BUFFER_SIZE);
+    }
+
+    @Test
+    public void smallWriteBuffers() throws Exception {
+        assertSorts(new SortOptions().setWriteBufferSize(4 * 1024).setWriteBuffers(2).setMemoryBudget(0)
+                .setMaxMergeFanIn(3).setMergePartitions(4), SHORT_LINES, SHORT_LEN);
+    }
+
+    @Test
+    public void readAhead() throws Exception {
+        for (RunCodec codec : new RunCodec[]{RunCodec.NONE, RunCodec.LZ}) {
+            for (int mergePartitions : new int[]{1, 3}) {
+                //the smallest buffers, for a fan-in of 3 runs in 3 partitions
+                assertSorts(new SortOptions().setReadAheadBudget(2L * 3 * 3 * ReadAheadChannel.MIN_BUFFER_SIZE)
+                        .setRunCodec(codec).setMemoryBudget(0).setMaxMergeFanIn(3)
+                        .setMergePartitions(mergePartitions), SHORT_LINES, SHORT_LEN);
+            }
+        }
+    }
+
+    /**
+     * Write buffers smaller than the lines, so that they're copied by the kernel into runs and output
+     */
+    @Test
+    public void transferLongLines() throws Exception {
+        for (RunFormat format : new RunFormat[]{RunFormat.TEXT, RunFormat.BINARY}) {
+            for (int mergePartitions : new int[]{1, 3}) {
+                assertSorts(new SortOptions().setWriteBufferSize(Global.BUFFER_SIZE).setRunFormat(format)
+                        .setMemoryBudget(0).setMergePartitions(mergePartitions), LONG_LINES, LONG_LEN);
+            }
+        }
+    }
+
+    @Test
+    public void longLineBlobs() throws Exception {
+        for (RunFormat format : new RunFormat[]{RunFormat.BINARY, RunFormat.BINARY_KEY_PREFIX}) {
+            //with intermediate merges, which copy the references
+            assertSorts(new SortOptions().setLongLineBlobs(true).setRunFormat(format).setMemoryBudget(0)
+                    .setMaxMergeFanIn(3), LONG_LINES, LONG_LEN);
+        }
+    }
+
+    @Test
+    public void queueWaitStrategies() throws Exception {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            for (boolean replacementSelection : new boolean[]{false, true}) {
+                assertSorts(new SortOptions().setQueueWaitStrategy(strategy)
+                        .setReplacementSelection(replacementSelection).setMemoryBudget(0), SHORT_LINES, SHORT_LEN);
+            }
+        }
+    }
+
+    /**
+     * Long lines check that the offsets of each range are those of the whole file
+     */
+    @Test
+    public void inputRanges() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            SortOptions options = new SortOptions().setInputRanges(7).setMappedInput(mapped).setMemoryBudget(0)
+                    .setMaxMergeFanIn(3);
+            assertSorts(options, BigFileSorter.QUEUE_BUCKET_SIZE * 3 + 3, SHORT_LEN);
+            assertSorts(options, LONG_LINES, LONG_LEN);
+        }
+    }
+
+    @Test
+    public void splitInput() throws Exception {
+        try (Writer writer = new FileWriter(inputFile)) {
+            writer.write("aaaaa\nbbbbb\n" + Utils.createLine(30) + "\nc");
+        }
+        BigFileSorter bigFileSorter = new BigFileSorter(inputFile, outputFile, null);
+        //the long line spans several ranges, which are left empty
+        Assert.assertArrayEquals(new long[]{0, 12, 43, 43, 43, 43, 44},
+                bigFileSorter.splitInput(6));
+        Assert.assertArrayEquals(new long[]{0, 44}, bigFileSorter.splitInput(1));
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            for (int minLen : new int[]{SHORT_LEN, LONG_LEN}) {
+                int NUM_LINES = minLen == LONG_LEN ? LONG_LINES : BigFileSorter.QUEUE_BUCKET_SIZE * 3 + 3;
+                Utils.writeRandomLines(inputFile, NUM_LINES, minLen);
+                BigFileSorter bigFileSorter = new BigFileSorter(inputFile, outputFile, null,
+                        new SortOptions().setMappedInput(mapped).setMemoryBudget(
+                                BigFileSorter.getInMemoryBytes(inputFile.length(), NUM_LINES)));
+                Assert.assertTrue(bigFileSorter.fitsInMemory(bigFileSorter.estimateLines()));
+                bigFileSorter.sort();
+                assertSortedOutput();
+            }
+        }
+    }
+
+    @Test
+    public void fitsInMemory() throws Exception {
+        Utils.writeRandomLines(inputFile, 1_000, SHORT_LEN);
+        //the whole input is sampled, so the estimate is exact
+        Assert.assertEquals(1_000, new BigFileSorter(inputFile, outputFile, null).estimateLines());
+        long budget = BigFileSorter.getInMemoryBytes(inputFile.length(), 1_000);
+        Assert.assertTrue(new BigFileSorter(inputFile, outputFile, null,
+                new SortOptions().setMemoryBudget(budget)).fitsInMemory(1_000));
+        Assert.assertFalse(new BigFileSorter(inputFile, outputFile, null,
+                new SortOptions().setMemoryBudget(budget - 1)).fitsInMemory(1_000));
+        Assert.assertFalse(new BigFileSorter(inputFile, outputFile, null,
+                new SortOptions().setMemoryBudget(budget).setInMemorySort(false)).fitsInMemory(1_000));
+    }
+
+    /**
+     * Runs can't be created in a missing folder, which must fail the job instead of leaving its reader waiting
+     */
+    @Test(timeout = 60_000)
+    public void sorterFailure() throws Exception {
+        Utils.writeRandomLines(inputFile, BigFileSorter.QUEUE_BUCKET_SIZE * 50, SHORT_LEN);
+        File missing = new File(inputFile.getPath() + ".missing");
+        for (int ranges : new int[]{1, 2}) {
+            for (boolean replacementSelection : new boolean[]{false, true}) {
+                BigFileSorter bigFileSorter = new BigFileSorter(inputFile, outputFile, missing,
+                        new SortOptions().setInMemorySort(false).setInputRanges(ranges).setSortWorkers(2)
+                                .setReplacementSelection(replacementSelection).setMemoryBudget(0));
+                try {
+                    bigFileSorter.sort();
+                    Assert.fail("sort should fail");
+                } catch (IOException e) {
+                    //expected
+                }
+            }
+        }
+    }
+
+    /**
+     * The start of the input has long lines, so the number of lines is underestimated and the in memory sort
+     * must give up and sort with runs
+     */
+    @Test
+    public void inMemoryFallsBackToRuns() throws Exception {
+        try (Writer writer = new FileWriter(inputFile)) {
+            String longLine = Utils.createLine(1_000);
+            for (int i = 0; i < 1_100; i++) {
+                writer.write(longLine + i + "\n");
+            }
+            for (int i = 0; i < 100_000; i++) {
+                writer.write(i + "\n");
+            }
+        }
+        BigFileSorter bigFileSorter = new BigFileSorter(inputFile, outputFile, null, new SortOptions());
+        long budget = BigFileSorter.getInMemoryBytes(inputFile.length(), bigFileSorter.estimateLines());
+        Assert.assertTrue(budget < BigFileSorter.getInMemoryBytes(inputFile.length(), 101_100));
+        bigFileSorter = new BigFileSorter(inputFile, outputFile, null, new SortOptions().setMemoryBudget(budget));
+        Assert.assertTrue(bigFileSorter.fitsInMemory(bigFileSorter.estimateLines()));
+        bigFileSorter.sort();
+        assertSortedOutput();
+    }
+
+    /**
+     * Runs big enough to be sorted by several fork/join tasks
+     */
+    @Test
+    public void parallelChunkSort() throws Exception {
+        for (boolean parallel : new boolean[]{false, true}) {
+            assertSorts(new SortOptions().setParallelChunkSort(parallel).setSortWorkers(2).setInMemorySort(false),
+                    BigFileSorter.QUEUE_BUCKET_SIZE * 10 + 3, SHORT_LEN);
+        }
+    }
+
+    /**
+     * Runs are merged while they're generated, and no temporary file is left
+     */
+    @Test
+    public void backgroundMerges() throws Exception {
+        for (RunFormat format : new RunFormat[]{RunFormat.TEXT, RunFormat.BINARY}) {
+            for (int minLen : new int[]{SHORT_LEN, LONG_LEN}) {
+                File tmpFolder = Files.createTempDirectory("BigFileSorterTest").toFile();
+                tmpFolder.deleteOnExit();
+                assertSorts(tmpFolder, new SortOptions().setBackgroundMergeFanIn(2).setRunFormat(format)
+                                .setLongLineBlobs(format == RunFormat.BINARY).setMemoryBudget(0).setMaxMergeFanIn(3),
+                        minLen == LONG_LEN ? LONG_LINES : BigFileSorter.QUEUE_BUCKET_SIZE * 7 + 3, minLen);
+                Assert.assertArrayEquals(new String[0], tmpFolder.list());
+                tmpFolder.delete();
+            }
+        }
+    }
+
+    private void assertSorts(SortOptions options, int numLines, int minLen) throws Exception {
+        assertSorts(null, options, numLines, minLen);
+    }
+
+    /**
+     * Sorts numLines random lines longer than minLen, and checks that the output has the same lines, sorted
+     */
+    private void assertSorts(File tmpFolder, SortOptions options, int numLines, int minLen) throws Exception {
+        Utils.writeRandomLines(inputFile, numLines, minLen);
+        new BigFileSorter(inputFile, outputFile, tmpFolder, options).sort();
+        checkLines(outputFile, numLines, minLen);
+        assertSortedOutput();
+    }
+
+    private void assertSortedOutput() throws IOException {
+        Assert.assertEquals(inputFile.length(), outputFile.length());
+        List<String> expected = Files.readAllLines(inputFile.toPath());
+        Collections.sort(expected);
+        Assert.assertEquals(expected, Files.readAllLines(outputFile.toPath()));
+    }
+
     void checkLines(File outputFile, int numLines, int minLen) throws IOException {
         int readLines = 0;
         try (BufferedReader bufferedReader = new BufferedReader(new FileReader(outputFile))) {
             String line;
+            String previous = null;
             while ((line = bufferedReader.readLine()) != null) {
                 readLines++;
                 Assert.assertTrue(line, line.length() > minLen);
+                if (previous != null) {
+                    Assert.assertTrue(previous + " > " + line, previous.compareTo(line) <= 0);
+                }
+                previous = line;
             }
         }
         Assert.assertEquals(numLines, readLines);
@@ -0,0 +1,104 @@
+package org.dpinol;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link ByteScanner} against the byte by byte search
+ */
+public class ByteScannerTest {
+    private final Random rnd = new Random();
+
+    @Test
+    public void singleByte() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int i = 0; i < 1000; i++) {
+                ByteBuffer buffer = randomBuffer(rnd.nextInt(40), order);
+                int from = rnd.nextInt(buffer.limit() + 1);
+                byte needle = (byte) rnd.nextInt(8);
+                assertEquals(naiveIndexOf(buffer, from, buffer.limit(), new byte[]{needle}),
+                        ByteScanner.indexOf(buffer, from, buffer.limit(), needle));
+            }
+        }
+    }
+
+    @Test
+    public void multiByte() {
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer buffer = randomBuffer(rnd.nextInt(40), ByteOrder.BIG_ENDIAN);
+            byte[] needle = {(byte) rnd.nextInt(4), (byte) rnd.nextInt(4)};
+            assertEquals(naiveIndexOf(buffer, 0, buffer.limit(), needle),
+                    ByteScanner.indexOf(buffer, 0, buffer.limit(), needle));
+        }
+    }
+
+    @Test
+    public void highBytes() {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) 0x80;
+        }
+        bytes[11] = (byte) 0xff;
+        assertEquals(11, ByteScanner.indexOf(ByteBuffer.wrap(bytes), 0, bytes.length, (byte) 0xff));
+        assertEquals(-1, ByteScanner.indexOf(ByteBuffer.wrap(bytes), 0, bytes.length, (byte) 0x7f));
+    }
+
+    /**
+     * Microbenchmark of newline search on a buffer of short lines
+     */
+    @Ignore
+    @Test
+    public void performance() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024 * 1024);
+        while (buffer.hasRemaining()) {
+            buffer.put(rnd.nextInt(40) == 0 ? (byte) '\n' : (byte) ('a' + rnd.nextInt(26)));
+        }
+        byte[] separator = {'\n'};
+        for (int round = 0; round < 5; round++) {
+            int naiveLines = 0;
+            try (Timer timer = new Timer()) {
+                int nl = -1;
+                while ((nl = naiveIndexOf(buffer, nl + 1, buffer.limit(), separator)) >= 0)
+                    naiveLines++;
+                Global.log("byte by byte: " + naiveLines + " lines");
+            }
+            int swarLines = 0;
+            try (Timer timer = new Timer()) {
+                int nl = -1;
+                while ((nl = ByteScanner.indexOf(buffer, nl + 1, buffer.limit(), separator)) >= 0)
+                    swarLines++;
+                Global.log("SWAR: " + swarLines + " lines");
+            }
+            assertEquals(naiveLines, swarLines);
+        }
+    }
+
+    private ByteBuffer randomBuffer(int size, ByteOrder order) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) rnd.nextInt(8);
+        }
+        return ByteBuffer.wrap(bytes).order(order);
+    }
+
+    /**
+     * The search previously done by {@link BigLineReader}
+     */
+    private static int naiveIndexOf(ByteBuffer buffer, int from, int to, byte[] needle) {
+        for (int i = from; i + needle.length <= to; i++) {
+            boolean found = true;
+            for (int j = 0; j < needle.length && found; j++) {
+                found = buffer.get(i + j) == needle[j];
+            }
+            if (found)
+                return i;
+        }
+        return -1;
+    }
+}
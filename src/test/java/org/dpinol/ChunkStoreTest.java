@@ -0,0 +1,223 @@
+package org.dpinol;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.dpinol.Global.BUFFER_SIZE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sorts lines packed in a {@link ChunkStore}, with each {@link ChunkSortEngine}
+ */
+@RunWith(Parameterized.class)
+public class ChunkStoreTest {
+    private final Random rnd = new Random();
+
+    @Parameterized.Parameter
+    public ChunkSortEngine engine;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] engines() {
+        return ChunkSortEngine.values();
+    }
+
+    @Test
+    public void shortLines() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            lines.add(Integer.toString(rnd.nextInt(1_000)));
+        }
+        lines.add("");
+        assertSorted(new ChunkStore(10, false), lines);
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            lines.add(Utils.createLine(rnd.nextInt(BUFFER_SIZE)));
+        }
+        assertSorted(new ChunkStore(10, true), lines);
+    }
+
+    @Test
+    public void sharedPrefixes() throws Exception {
+        List<String> lines = new ArrayList<>();
+        String[] prefixes = {"http://www.example.com/", "http://www.example.com/a/b/", "http://www.example.org/"};
+        for (int i = 0; i < 5_000; i++) {
+            lines.add(prefixes[rnd.nextInt(prefixes.length)] + rnd.nextInt(100));
+        }
+        lines.add("http://www.example.com");
+        assertSorted(new ChunkStore(10, false), lines);
+    }
+
+    /**
+     * Key prefixes are padded with zeros, so they can't tell apart these lines
+     */
+    @Test
+    public void zeroPadding() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add("ab");
+            lines.add("ab\0");
+            lines.add("ab\0\0\0\0\0\0");
+            lines.add("ab\0\0\0\0\0\0\0");
+            lines.add("abcdefgh");
+            lines.add("abcdefghi");
+        }
+        Collections.shuffle(lines, rnd);
+        assertSorted(new ChunkStore(10, false), lines);
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        ChunkStore store = new ChunkStore(10, false);
+        assertSorted(store, Collections.nCopies(3, "b"));
+        store.clear();
+        assertEquals(0, store.getMemoryUsed());
+        assertSorted(store, Arrays.asList("c", "a", "b"));
+    }
+
+    /**
+     * Entries grown for a previous chunk are kept, but not counted as used
+     */
+    @Test
+    public void memoryUsed() throws Exception {
+        ChunkStore store = new ChunkStore(10, false);
+        for (int i = 0; i < 100_000; i++) {
+            store.add(new ByteLine(Integer.toString(i).getBytes()));
+        }
+        assertEquals(ChunkStore.SLAB_SIZE + 100_000L * ChunkStore.ENTRY_LONGS * Long.BYTES,
+                store.getMemoryUsed());
+        store.clear();
+        assertEquals(0, store.getMemoryUsed());
+    }
+
+    /**
+     * The aux entries of parallel and radix sorts are counted before sorting, and while they're kept
+     */
+    @Test
+    public void sortMemoryUsed() throws Exception {
+        ChunkStore store = new ChunkStore(10, false);
+        for (int i = 0; i < 1_000; i++) {
+            store.add(new ByteLine(Integer.toString(i).getBytes()));
+        }
+        long aux = 1_000L * ChunkStore.ENTRY_LONGS * Long.BYTES;
+        long sequentialAux = engine.usesAux() ? aux : 0;
+        assertEquals(store.getMemoryUsed() + aux, store.getMemoryUsed(engine, true));
+        assertEquals(store.getMemoryUsed() + sequentialAux, store.getMemoryUsed(engine, false));
+        store.sort(engine);
+        store.clear();
+        assertEquals(sequentialAux, store.getMemoryUsed(engine, false));
+        for (int i = 0; i < 1_000; i++) {
+            store.add(new ByteLine(Integer.toString(i).getBytes()));
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            store.parallelSort(engine, pool);
+        } finally {
+            pool.shutdown();
+        }
+        store.clear();
+        assertEquals(aux, store.getMemoryUsed(engine, true));
+    }
+
+    @Test
+    public void longLines() throws Exception {
+        File file = File.createTempFile("ChunkStoreTest", null);
+        file.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        ChunkStore store = new ChunkStore(10, false);
+        String prefix = Utils.createLine(BUFFER_SIZE);
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel channel = FileChannel.open(file.toPath())) {
+            long offset = 0;
+            for (int i = 0; i < 100; i++) {
+                String line = prefix + rnd.nextInt(10);
+                if (rnd.nextBoolean()) {
+                    line += Utils.createLine(rnd.nextInt(BUFFER_SIZE * 2));
+                }
+                byte[] bytes = line.getBytes();
+                out.write(bytes);
+                lines.add(line);
+                if (bytes.length > BUFFER_SIZE) {
+                    ByteBuffer head = ByteBuffer.wrap(bytes, 0, BUFFER_SIZE);
+                    store.add(new LongLine(channel, head, offset, bytes.length));
+                } else {
+                    store.add(new ByteLine(bytes));
+                }
+                offset += bytes.length;
+            }
+            out.flush();
+            lines.add(prefix);
+            store.add(new ByteLine(prefix.getBytes()));
+            assertSorted(store, lines, Collections.emptyList());
+        }
+    }
+
+    /**
+     * Enough lines to be split in several ranges, which are merged
+     */
+    @Test
+    public void parallel() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < ChunkParallelSort.MIN_LINES_PER_TASK * 5; i++) {
+            lines.add("http://www.example.com/" + rnd.nextInt(100_000));
+        }
+        ChunkStore store = new ChunkStore(10, false);
+        for (String line : lines) {
+            store.add(new ByteLine(line.getBytes()));
+        }
+        Collections.sort(lines);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            store.parallelSort(engine, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertWritten(store, lines);
+    }
+
+    private void assertSorted(ChunkStore store, List<String> lines) throws IOException {
+        assertSorted(store, new ArrayList<>(), lines);
+    }
+
+    /**
+     * @param lines      already added to the store
+     * @param linesToAdd     added to the store now
+     */
+    private void assertSorted(ChunkStore store, List<String> lines, List<String> linesToAdd) throws IOException {
+        List<String> expected = new ArrayList<>(lines);
+        for (String line : linesToAdd) {
+            store.add(new ByteLine(line.getBytes()));
+            expected.add(line);
+        }
+        Collections.sort(expected);
+        store.sort(engine);
+        assertWritten(store, expected);
+    }
+
+    private void assertWritten(ChunkStore store, List<String> expected) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeTo(out);
+        StringBuilder sb = new StringBuilder();
+        for (String line : expected) {
+            sb.append(line).append(Global.LINE_SEPARATOR);
+        }
+        assertEquals(sb.toString(), out.toString());
+    }
+}
@@ -54,6 +54,97 @@ public class FileLineReaderTest {
     }
 
 
+    @Test
+    public void emptyLines() throws Exception {
+        writeAndRead("line1", "", "", "line2", "");
+    }
+
+    @Test
+    public void range() throws Exception {
+        writeLines("line1", "line2", createLine(BUFFER_SIZE * 2), "line4");
+        for (boolean mapped : new boolean[]{false, true}) {
+            try (BigLineReader reader = new BigLineReader(tempFile.toPath(), mapped)) {
+                assertEquals(0, reader.seekLineStart(0));
+                assertEquals(6, reader.seekLineStart(3));
+                assertEquals(6, reader.seekLineStart(6));
+                assertEquals(12, reader.seekLineStart(7));
+                long line4Start = 12 + BUFFER_SIZE * 2 + 1;
+                assertEquals(line4Start, reader.seekLineStart(13));
+                assertEquals("line4", readLine(reader));
+                assertEquals(tempFile.length(), reader.seekLineStart(line4Start + 1));
+            }
+            try (BigLineReader reader = new BigLineReader(tempFile.toPath(), 6, 12 + BUFFER_SIZE * 2 + 1, mapped)) {
+                assertEquals("line2", readLine(reader));
+                assertEquals(createLine(BUFFER_SIZE * 2), readLine(reader));
+                assertNull(reader.getBigLine());
+            }
+        }
+    }
+
+    /**
+     * Read ahead buffers smaller than the lines, starting after some lines have already been read
+     */
+    @Test
+    public void readAhead() throws Exception {
+        String[] lines = new String[200];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = createLine(rnd.nextInt(BUFFER_SIZE * 3));
+        }
+        writeLines(lines);
+        try (BigLineReader reader = new BigLineReader(tempFile)) {
+            assertEquals(lines[0], readLine(reader));
+            reader.readAhead(BUFFER_SIZE / 3);
+            for (int i = 1; i < lines.length; i++) {
+                assertEquals(lines[i], readLine(reader));
+            }
+            assertNull(reader.getBigLine());
+        }
+        long start = lines[0].length() + 1;
+        long end = start + lines[1].length() + 1 + lines[2].length() + 1;
+        try (BigLineReader reader = new BigLineReader(tempFile.toPath(), start, end, false)) {
+            reader.readAhead(ReadAheadChannel.MIN_BUFFER_SIZE);
+            assertEquals(lines[1], readLine(reader));
+            assertEquals(lines[2], readLine(reader));
+            assertNull(reader.getBigLine());
+        }
+    }
+
+    /**
+     * The buffers of all the channels fit in the budget, even when they're too many to read ahead
+     */
+    @Test
+    public void readAheadBudget() {
+        SortOptions options = new SortOptions().setReadAheadBudget(64 * 1024 * 1024);
+        for (int numChannels : new int[]{1, 8, 256, 1024, 2048, 256 * 32}) {
+            int bufferSize = ReadAheadChannel.getBufferSize(options, numChannels);
+            assertTrue(numChannels + " channels", 2L * numChannels * bufferSize <= options.getReadAheadBudget());
+        }
+        assertEquals(ReadAheadChannel.MAX_BUFFER_SIZE, ReadAheadChannel.getBufferSize(options, 1));
+        assertEquals(0, ReadAheadChannel.getBufferSize(options, 256 * 32));
+        assertEquals(0, ReadAheadChannel.getBufferSize(options.setReadAheadBudget(0), 1));
+    }
+
+    @Test
+    public void shortLinesMapped() throws Exception {
+        writeLines("line1", "line2", "", "line3");
+        assertReadLines(true, BigLineReader.MAPPED_WINDOW_SIZE, "line1", "line2", "", "line3");
+    }
+
+    /**
+     * Uses tiny windows so that lines cross window boundaries, or even span several windows
+     */
+    @Test
+    public void longRndLinesMapped() throws Exception {
+        String lines[] = new String[50];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = createLine(1 + rnd.nextInt(BUFFER_SIZE * 3));
+        }
+        writeLines(lines);
+        assertReadLines(true, BUFFER_SIZE * 2, lines);
+        assertReadLines(true, BUFFER_SIZE, lines);
+    }
+
+
     private int findNewLine(ByteBuffer aBuffer, int startIndex, long bufSize) {
         byte[] array = aBuffer.array();
         //TODO is there an efficient char search?
@@ -154,7 +245,11 @@ public class FileLineReaderTest {
      */
     private void writeAndRead(String... lines2write) throws IOException {
         writeLines(lines2write);
-        try (BigLineReader reader = new BigLineReader(tempFile)) {
+        assertReadLines(false, BigLineReader.MAPPED_WINDOW_SIZE, lines2write);
+    }
+
+    private void assertReadLines(boolean mapped, int windowSize, String... lines2write) throws IOException {
+        try (BigLineReader reader = new BigLineReader(tempFile.toPath(), mapped, windowSize)) {
             for (String line : lines2write) {
                 Global.log("testing line of length " + line.length());
                 String readLine = readLine(reader);
@@ -0,0 +1,131 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.dpinol.Global.BUFFER_SIZE;
+import static org.dpinol.Utils.createLine;
+import static org.junit.Assert.*;
+
+/**
+ * Comparison and writing of the different {@link FileLine} implementations
+ */
+public class FileLineTest {
+
+    @Test
+    public void unsignedComparison() {
+        ByteLine ascii = byteLine("z");
+        ByteLine accent = byteLine("é");
+        assertTrue(ascii.compareTo(accent) < 0);
+        assertTrue(accent.compareTo(ascii) > 0);
+        assertTrue(byteLine("abc").compareTo(byteLine("abcd")) < 0);
+        assertEquals(0, byteLine("abcdefghijk").compareTo(byteLine("abcdefghijk")));
+        assertTrue(byteLine("abcdefghijk").compareTo(byteLine("abcdefghijj")) > 0);
+    }
+
+    @Test
+    public void writeKeepsBytes() throws Exception {
+        byte[] latin1 = {'a', (byte) 0xe9, 'b'};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ByteLine(latin1).write(out);
+        assertArrayEquals(latin1, out.toByteArray());
+    }
+
+    @Test
+    public void longVsShort() throws Exception {
+        File file = File.createTempFile("FileLineTest", null);
+        file.deleteOnExit();
+        String text = createLine(BUFFER_SIZE * 3);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ByteBuffer head = ByteBuffer.wrap(text.substring(0, BUFFER_SIZE).getBytes(StandardCharsets.UTF_8));
+            LongLine longLine = new LongLine(channel, head, 0, text.length());
+            ByteLine prefix = byteLine(text.substring(0, BUFFER_SIZE + 1));
+            assertTrue(prefix.compareTo(longLine) < 0);
+            assertTrue(longLine.compareTo(prefix) > 0);
+            ByteLine bigger = byteLine(text.substring(0, BUFFER_SIZE) + "zz");
+            assertTrue(bigger.compareTo(longLine) > 0);
+            assertEquals(0, longLine.compareTo(new LongLine(channel, head, 0, text.length())));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            longLine.write(out);
+            assertEquals(text, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Lines which span several blocks and share most of them are compared from the block cache
+     */
+    @Test
+    public void longLinesSharingPrefix() throws Exception {
+        File file = File.createTempFile("FileLineTest", null);
+        file.deleteOnExit();
+        String prefix = createLine(BlockCache.BLOCK_SIZE * 2 + 17);
+        String text1 = prefix + "a" + createLine(1000);
+        String text2 = prefix + "b";
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write((text1 + "\n" + text2).getBytes(StandardCharsets.UTF_8));
+            //the last block of the file is not cached
+            out.write(new byte[BlockCache.BLOCK_SIZE]);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ByteBuffer head = ByteBuffer.wrap(prefix.substring(0, BUFFER_SIZE).getBytes(StandardCharsets.UTF_8));
+            LongLine line1 = new LongLine(channel, head, 0, text1.length());
+            LongLine line2 = new LongLine(channel, head, text1.length() + 1, text2.length());
+            assertTrue(line1.compareTo(line2) < 0);
+            long reads = BlockCache.SHARED.getReads();
+            for (int i = 0; i < 10; i++) {
+                assertTrue(line2.compareTo(line1) > 0);
+                assertTrue(line1.compareFrom(line2, BUFFER_SIZE) < 0);
+            }
+            assertEquals(reads, BlockCache.SHARED.getReads());
+            assertEquals(Bytes.prefix(ByteBuffer.wrap(text1.getBytes(StandardCharsets.UTF_8)), 0, Long.BYTES),
+                    line1.getKeyPrefix());
+
+            StringBuilder chunks = new StringBuilder();
+            Iterator<ByteBuffer> iterator = line2.getByteIterator();
+            while (iterator.hasNext()) {
+                ByteBuffer chunk = iterator.next();
+                assertTrue(chunk.remaining() <= FileLine.LENGTH_THRESHOLD);
+                chunks.append(StandardCharsets.UTF_8.decode(chunk));
+            }
+            assertEquals(text2, chunks.toString());
+        }
+    }
+
+    private static ByteLine byteLine(String text) {
+        return new ByteLine(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closing the reader of a file drops its blocks from the shared cache
+     */
+    @Test
+    public void closeInvalidatesBlocks() throws Exception {
+        File file = File.createTempFile("FileLineTest", null);
+        file.deleteOnExit();
+        String text = createLine(BlockCache.BLOCK_SIZE * 2);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write((text + "\n" + text + "\n").getBytes(StandardCharsets.UTF_8));
+            //the last block of the file is not cached
+            out.write(new byte[BlockCache.BLOCK_SIZE]);
+        }
+        int blocks = BlockCache.SHARED.size();
+        try (BigLineReader reader = new BigLineReader(file)) {
+            FileLine line1 = reader.getBigLine();
+            FileLine line2 = reader.getBigLine();
+            assertEquals(0, line1.compareTo(line2));
+            assertTrue(BlockCache.SHARED.size() > blocks);
+        }
+        assertEquals(blocks, BlockCache.SHARED.size());
+    }
+}
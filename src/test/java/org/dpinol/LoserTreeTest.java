@@ -0,0 +1,110 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merges sorted lists of lines with a {@link LoserTree}
+ */
+public class LoserTreeTest {
+    private final Random rnd = new Random();
+
+    @Test
+    public void empty() throws Exception {
+        assertTrue(new LoserTree(new FileLine[0]).isEmpty());
+        assertTrue(new LoserTree(new FileLine[3]).isEmpty());
+    }
+
+    @Test
+    public void merge() throws Exception {
+        for (int k = 1; k < 40; k++) {
+            List<List<String>> sources = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                List<String> source = new ArrayList<>();
+                //some sources are empty
+                int numLines = rnd.nextInt(20);
+                for (int j = 0; j < numLines; j++) {
+                    source.add(Integer.toString(rnd.nextInt(100)));
+                }
+                Collections.sort(source);
+                sources.add(source);
+                expected.addAll(source);
+            }
+            Collections.sort(expected);
+            assertEquals("k=" + k, expected, merge(sources, false));
+        }
+    }
+
+    @Test
+    public void mergeWithSharedPrefixes() throws Exception {
+        for (int k = 1; k < 40; k++) {
+            List<List<String>> sources = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                List<String> source = new ArrayList<>();
+                int numLines = rnd.nextInt(30);
+                for (int j = 0; j < numLines; j++) {
+                    //few letters, so that lines share long prefixes and many are repeated
+                    StringBuilder line = new StringBuilder("http://host/");
+                    int length = rnd.nextInt(12);
+                    for (int c = 0; c < length; c++) {
+                        line.append((char) ('a' + rnd.nextInt(3)));
+                    }
+                    source.add(line.toString());
+                }
+                Collections.sort(source);
+                sources.add(source);
+                expected.addAll(source);
+            }
+            Collections.sort(expected);
+            assertEquals("k=" + k, expected, merge(sources, true));
+        }
+    }
+
+    /**
+     * @param sharedPrefixes if true, the tree is told how many bytes each line shares with the previous one
+     */
+    private List<String> merge(List<List<String>> sources, boolean sharedPrefixes) throws Exception {
+        int[] positions = new int[sources.size()];
+        FileLine[] firstLines = new FileLine[sources.size()];
+        for (int i = 0; i < firstLines.length; i++) {
+            firstLines[i] = next(sources, positions, i);
+        }
+        LoserTree tree = new LoserTree(firstLines);
+        List<String> merged = new ArrayList<>();
+        while (!tree.isEmpty()) {
+            String winner = tree.getWinner().toString();
+            merged.add(winner);
+            FileLine next = next(sources, positions, tree.getWinnerIndex());
+            if (sharedPrefixes && next != null) {
+                tree.replaceWinner(next, commonPrefixLength(winner, next.toString()));
+            } else {
+                tree.replaceWinner(next);
+            }
+        }
+        return merged;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static FileLine next(List<List<String>> sources, int[] positions, int source) {
+        List<String> lines = sources.get(source);
+        if (positions[source] == lines.size()) {
+            return null;
+        }
+        return new ByteLine(lines.get(positions[source]++).getBytes());
+    }
+}
@@ -0,0 +1,78 @@
+package org.dpinol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Layout of the merge passes
+ */
+public class MergePlanTest {
+    private File tmpFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpFolder = Files.createTempDirectory("MergePlanTest").toFile();
+        tmpFolder.deleteOnExit();
+    }
+
+    @Test
+    public void singlePass() throws Exception {
+        MergePlan plan = MergePlan.create(createRuns(10, 4), 10, tmpFolder, new File(tmpFolder, "out"));
+        assertEquals(1, plan.getSteps().size());
+        assertEquals(10, plan.getSteps().get(0).inputs.size());
+        assertTrue(plan.getSteps().get(0).isFinal);
+    }
+
+    @Test
+    public void boundedFanIn() throws Exception {
+        //with 10 runs and fan-in 4: 10 -> 7 -> 4 -> output, all steps full
+        MergePlan plan = MergePlan.create(createRuns(10, 4), 4, tmpFolder, new File(tmpFolder, "out"));
+        List<MergePlan.Step> steps = plan.getSteps();
+        assertEquals(3, steps.size());
+        assertEquals(4, steps.get(0).inputs.size());
+        for (MergePlan.Step step : steps) {
+            assertTrue(step.inputs.size() <= 4);
+        }
+        assertTrue(steps.get(steps.size() - 1).isFinal);
+    }
+
+    @Test
+    public void smallestFirst() throws Exception {
+        List<File> runs = new ArrayList<>();
+        runs.add(createRun(100));
+        runs.add(createRun(1));
+        runs.add(createRun(2));
+        runs.add(createRun(0));
+        MergePlan plan = MergePlan.create(runs, 2, tmpFolder, new File(tmpFolder, "out"));
+        //empty run is ignored, and the 2 smallest are merged first
+        assertEquals(2, plan.getSteps().size());
+        assertEquals(3, plan.getSteps().get(0).output.numBytes);
+        assertEquals(3 + 103, plan.getBytesWritten());
+    }
+
+    private List<File> createRuns(int numRuns, int numBytes) throws IOException {
+        List<File> runs = new ArrayList<>();
+        for (int i = 0; i < numRuns; i++) {
+            runs.add(createRun(numBytes));
+        }
+        return runs;
+    }
+
+    private File createRun(int numBytes) throws IOException {
+        File run = File.createTempFile("run", null, tmpFolder);
+        run.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(run)) {
+            out.write(new byte[numBytes]);
+        }
+        return run;
+    }
+}
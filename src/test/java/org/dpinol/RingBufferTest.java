@@ -0,0 +1,127 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+    @Test
+    public void roundsCapacity() {
+        assertEquals(8, new RingBuffer<Integer>(5, WaitStrategy.PARK).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8, WaitStrategy.PARK).capacity());
+        assertEquals(2, new RingBuffer<Integer>(1, WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void fifo() throws Exception {
+        RingBuffer<Integer> sut = new RingBuffer<>(4, WaitStrategy.BUSY_SPIN);
+        assertNull(sut.poll());
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(sut.offer(i));
+            }
+            assertFalse(sut.offer(4));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i, sut.poll().intValue());
+            }
+            assertNull(sut.poll());
+        }
+    }
+
+    @Test
+    public void takeAfterClose() throws Exception {
+        RingBuffer<Integer> sut = new RingBuffer<>(4, WaitStrategy.PARK);
+        sut.put(1);
+        sut.close();
+        assertEquals(1, sut.take().intValue());
+        assertNull(sut.take());
+        assertNull(sut.take());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void putAfterClose() throws Exception {
+        RingBuffer<Integer> sut = new RingBuffer<>(4, WaitStrategy.PARK);
+        sut.close();
+        sut.put(1);
+    }
+
+    /**
+     * Producers stop waiting for space once a consumer cancels it
+     */
+    @Test(timeout = 10_000)
+    public void putAfterCancel() throws Exception {
+        RingBuffer<Integer> sut = new RingBuffer<>(2, WaitStrategy.PARK);
+        assertTrue(sut.put(1));
+        assertTrue(sut.put(2));
+        Thread consumer = new Thread(sut::cancel);
+        consumer.start();
+        //full, so it waits until the cancel
+        assertFalse(sut.put(3));
+        consumer.join();
+        assertFalse(sut.put(4));
+    }
+
+    /**
+     * Every element must be taken exactly once, and consumers must end once the producers close it
+     */
+    @Test
+    public void manyProducersAndConsumers() throws Exception {
+        int PRODUCERS = 3;
+        int CONSUMERS = 3;
+        int PER_PRODUCER = 20_000;
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            RingBuffer<Integer> sut = new RingBuffer<>(16, strategy);
+            AtomicIntegerArray taken = new AtomicIntegerArray(PRODUCERS * PER_PRODUCER);
+            List<Thread> producers = new ArrayList<>();
+            List<Thread> consumers = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                int first = p * PER_PRODUCER;
+                producers.add(start(() -> {
+                    for (int i = first; i < first + PER_PRODUCER; i++) {
+                        sut.put(i);
+                    }
+                }));
+            }
+            for (int c = 0; c < CONSUMERS; c++) {
+                consumers.add(start(() -> {
+                    Integer element;
+                    while ((element = sut.take()) != null) {
+                        taken.incrementAndGet(element);
+                    }
+                }));
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            sut.close();
+            for (Thread consumer : consumers) {
+                consumer.join(10_000);
+                assertFalse(strategy.toString(), consumer.isAlive());
+            }
+            for (int i = 0; i < taken.length(); i++) {
+                assertEquals(strategy + " " + i, 1, taken.get(i));
+            }
+        }
+    }
+
+    private interface Job {
+        void run() throws Exception;
+    }
+
+    private static Thread start(Job job) {
+        Thread thread = new Thread(() -> {
+            try {
+                job.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
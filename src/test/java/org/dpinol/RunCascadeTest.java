@@ -0,0 +1,120 @@
+package org.dpinol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Background merges of the runs, by level
+ */
+public class RunCascadeTest {
+    private File tmpFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpFolder = Files.createTempDirectory("RunCascadeTest").toFile();
+        tmpFolder.deleteOnExit();
+    }
+
+    @Test
+    public void mergesByLevel() throws Exception {
+        List<String> expected = new ArrayList<>();
+        List<File> added = new ArrayList<>();
+        List<File> left;
+        try (RunCascade sut = new RunCascade(tmpFolder, new SortOptions().setBackgroundMergeFanIn(3))) {
+            //10 runs: 3 merges at level 0 and 1 at level 1, which leave 1 run of level 2 and 1 of level 0
+            for (int i = 0; i < 10; i++) {
+                List<String> lines = Arrays.asList("a" + i, "b" + i, "c" + i);
+                expected.addAll(lines);
+                File run = createRun(lines);
+                added.add(run);
+                sut.add(run);
+            }
+            left = sut.finish();
+        }
+        assertEquals(2, left.size());
+        for (File run : added) {
+            if (!left.contains(run)) {
+                assertFalse(run + " should be deleted once merged", run.exists());
+            }
+        }
+        List<String> merged = new ArrayList<>();
+        for (File run : left) {
+            List<String> lines = Files.readAllLines(run.toPath());
+            List<String> sorted = new ArrayList<>(lines);
+            Collections.sort(sorted);
+            assertEquals(sorted, lines);
+            merged.addAll(lines);
+        }
+        Collections.sort(expected);
+        Collections.sort(merged);
+        assertEquals(expected, merged);
+    }
+
+    @Test
+    public void withoutFanIn() throws Exception {
+        List<File> added = new ArrayList<>();
+        try (RunCascade sut = new RunCascade(tmpFolder, new SortOptions())) {
+            for (int i = 0; i < 10; i++) {
+                File run = createRun(Collections.singletonList("a" + i));
+                added.add(run);
+                sut.add(run);
+            }
+            assertEquals(added, sut.finish());
+        }
+        for (File run : added) {
+            assertTrue(run.exists());
+        }
+    }
+
+    @Test
+    public void closeDeletesRuns() throws Exception {
+        File run = createRun(Collections.singletonList("a"));
+        try (RunCascade sut = new RunCascade(tmpFolder, new SortOptions().setBackgroundMergeFanIn(3))) {
+            sut.add(run);
+        }
+        assertFalse(run.exists());
+    }
+
+    /**
+     * A failed merge is reported by finish, and its inputs are deleted on close
+     */
+    @Test(timeout = 60_000)
+    public void failedMerge() throws Exception {
+        List<File> added = new ArrayList<>();
+        //merges can't be written in a missing folder
+        try (RunCascade sut = new RunCascade(new File(tmpFolder, "missing"),
+                new SortOptions().setBackgroundMergeFanIn(2))) {
+            for (int i = 0; i < 2; i++) {
+                File run = createRun(Collections.singletonList("a" + i));
+                added.add(run);
+                sut.add(run);
+            }
+            try {
+                sut.finish();
+                fail("finish should fail");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+        for (File run : added) {
+            assertFalse(run.exists());
+        }
+    }
+
+    private File createRun(List<String> lines) throws IOException {
+        File run = File.createTempFile("run", null, tmpFolder);
+        run.deleteOnExit();
+        Files.write(run.toPath(), lines);
+        return run;
+    }
+}
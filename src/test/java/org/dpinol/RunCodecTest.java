@@ -0,0 +1,123 @@
+package org.dpinol;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compresses and decompresses runs with each {@link RunCodec}
+ */
+@RunWith(Parameterized.class)
+public class RunCodecTest {
+    private final Random rnd = new Random(1);
+
+    @Parameterized.Parameter
+    public RunCodec codec;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] codecs() {
+        return RunCodec.values();
+    }
+
+    @Test
+    public void empty() throws Exception {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    public void randomBytes() throws Exception {
+        byte[] bytes = new byte[LzBlockOutputStream.BLOCK_SIZE * 3 + 17];
+        rnd.nextBytes(bytes);
+        assertRoundTrip(bytes);
+    }
+
+    @Test
+    public void repetitiveBytes() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            sb.append("http://www.example.com/path/").append(i % 300).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(Global.ENCODING);
+        byte[] compressed = assertRoundTrip(bytes);
+        if (codec != RunCodec.NONE) {
+            assertTrue(compressed.length + " bytes", compressed.length < bytes.length / 4);
+        }
+    }
+
+    @Test
+    public void longMatches() throws Exception {
+        byte[] bytes = new byte[LzBlockOutputStream.BLOCK_SIZE * 2];
+        Arrays.fill(bytes, (byte) 'a');
+        bytes[bytes.length / 3] = 'b';
+        assertRoundTrip(bytes);
+    }
+
+    @Test
+    public void lines() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add("first");
+        lines.add("");
+        lines.add(Utils.createLine(StreamRunReader.INITIAL_BUFFER_SIZE * 3));
+        for (int i = 0; i < 10_000; i++) {
+            lines.add("line" + i);
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = codec.wrap(compressed)) {
+            for (String line : lines) {
+                out.write(line.getBytes(Global.ENCODING));
+                out.write(Global.LINE_SEPARATOR_BYTES);
+            }
+            //the last line may have no separator
+            out.write("last".getBytes(Global.ENCODING));
+        }
+        lines.add("last");
+        try (StreamRunReader reader = new StreamRunReader(
+                codec.wrap(new ByteArrayInputStream(compressed.toByteArray())))) {
+            for (String line : lines) {
+                assertEquals(line, reader.getBigLine().toString());
+            }
+            assertNull(reader.getBigLine());
+        }
+    }
+
+    /**
+     * @return the compressed bytes
+     */
+    private byte[] assertRoundTrip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = codec.wrap(compressed)) {
+            //in uneven pieces, to cross the block boundaries
+            int written = 0;
+            while (written < bytes.length) {
+                int len = Math.min(bytes.length - written, 1 + rnd.nextInt(10_000));
+                out.write(bytes, written, len);
+                written += len;
+            }
+        }
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = codec.wrap(new ByteArrayInputStream(compressed.toByteArray()))) {
+            byte[] buffer = new byte[777];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        assertArrayEquals(bytes, decompressed.toByteArray());
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,183 @@
+package org.dpinol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes and reads runs with each {@link RunFormat} and {@link RunCodec}
+ */
+@RunWith(Parameterized.class)
+public class RunFormatTest {
+    private final Random rnd = new Random();
+    private File run;
+
+    @Parameterized.Parameter
+    public RunFormat format;
+
+    @Parameterized.Parameter(1)
+    public RunCodec codec;
+
+    @Parameterized.Parameters(name = "{0} {1}")
+    public static List<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        for (RunFormat format : RunFormat.values()) {
+            for (RunCodec codec : RunCodec.values()) {
+                parameters.add(new Object[]{format, codec});
+            }
+        }
+        return parameters;
+    }
+
+    @Before
+    public void setup() throws Exception {
+        run = File.createTempFile("RunFormatTest", null);
+        run.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        run.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add("");
+        for (int i = 0; i < 2_000; i++) {
+            lines.add("http://host/" + Integer.toString(rnd.nextInt(1_000_000), 36));
+        }
+        lines.add(Utils.createLine(FileLine.LENGTH_THRESHOLD * 3));
+        lines.add(Utils.createLine(FileLine.LENGTH_THRESHOLD * 3) + "b");
+        //bigger than the read buffers
+        lines.add(Utils.createLine(RecordInput.BUFFER_SIZE * 2 + 1));
+        Collections.sort(lines);
+        SortOptions options = new SortOptions().setRunFormat(format).setRunCodec(codec);
+        try (RunWriter writer = RunFiles.createWriter(run, options)) {
+            for (int i = 0; i < lines.size(); i++) {
+                byte[] bytes = lines.get(i).getBytes(Global.ENCODING);
+                //both ways of writing a line
+                if (i % 2 == 0) {
+                    writer.write(bytes, 0, bytes.length);
+                } else {
+                    writer.write(new ByteLine(bytes));
+                }
+            }
+        }
+        try (RunReader reader = RunFiles.openReader(run, options)) {
+            String previous = null;
+            for (String expected : lines) {
+                FileLine line = reader.getBigLine();
+                assertEquals(expected, asString(line));
+                int shared = reader.getSharedPrefixLength();
+                if (shared >= 0) {
+                    assertEquals(commonPrefixLength(previous, expected), shared);
+                }
+                previous = expected;
+            }
+            assertNull(reader.getBigLine());
+        }
+    }
+
+    @Test
+    public void longLinesFromFile() throws Exception {
+        File input = File.createTempFile("RunFormatTest_input", null);
+        input.deleteOnExit();
+        int NUM_LINES = 20;
+        Utils.writeRandomLines(input, NUM_LINES, FileLine.LENGTH_THRESHOLD * 2);
+        List<String> expected = new ArrayList<>();
+        SortOptions options = new SortOptions().setRunFormat(format).setRunCodec(codec);
+        try (BigLineReader inputReader = new BigLineReader(input);
+             RunWriter writer = RunFiles.createWriter(run, options)) {
+            FileLine line;
+            while ((line = inputReader.getBigLine()) != null) {
+                assertTrue(line instanceof LongLine);
+                expected.add(asString(line));
+                writer.write(line);
+            }
+        }
+        try (RunReader reader = RunFiles.openReader(run, options)) {
+            for (String line : expected) {
+                assertEquals(line, asString(reader.getBigLine()));
+            }
+            assertNull(reader.getBigLine());
+        }
+        input.delete();
+    }
+
+    /**
+     * Binary formats only reference the long lines of the blob store, also when copying runs
+     */
+    @Test
+    public void longLinesInBlobStore() throws Exception {
+        File input = File.createTempFile("RunFormatTest_input", null);
+        input.deleteOnExit();
+        int NUM_LINES = 20;
+        Utils.writeRandomLines(input, NUM_LINES, FileLine.LENGTH_THRESHOLD * 4);
+        File copy = File.createTempFile("RunFormatTest_copy", null);
+        copy.deleteOnExit();
+        List<String> expected = new ArrayList<>();
+        try (BlobStore blobs = BlobStore.create(run.getParentFile())) {
+            SortOptions options = new SortOptions().setRunFormat(format).setRunCodec(codec).setBlobStore(blobs);
+            try (BigLineReader inputReader = new BigLineReader(input);
+                 RunWriter writer = RunFiles.createWriter(run, options)) {
+                FileLine line;
+                while ((line = inputReader.getBigLine()) != null) {
+                    expected.add(asString(line));
+                    writer.write(line);
+                    writer.write(new byte[]{'s'}, 0, 1);
+                }
+            }
+            boolean references = format == RunFormat.BINARY || format == RunFormat.BINARY_KEY_PREFIX;
+            long storedBytes = blobs.getSize();
+            assertEquals(references ? input.length() - NUM_LINES : 0, storedBytes);
+            try (RunReader reader = RunFiles.openReader(run, options);
+                 RunWriter writer = RunFiles.createWriter(copy, options)) {
+                FileLine line;
+                while ((line = reader.getBigLine()) != null) {
+                    writer.write(line);
+                }
+            }
+            assertEquals(storedBytes, blobs.getSize());
+            if (references && codec == RunCodec.NONE) {
+                assertTrue(copy.length() + " bytes", copy.length() < NUM_LINES * (FileLine.LENGTH_THRESHOLD + 32));
+            }
+            try (RunReader reader = RunFiles.openReader(copy, options)) {
+                for (String line : expected) {
+                    assertEquals(line, asString(reader.getBigLine()));
+                    assertEquals("s", asString(reader.getBigLine()));
+                }
+                assertNull(reader.getBigLine());
+            }
+        }
+        input.delete();
+        copy.delete();
+    }
+
+    private static String asString(FileLine line) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        line.write(out);
+        return out.toString(Global.ENCODING);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
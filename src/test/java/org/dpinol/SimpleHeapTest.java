@@ -51,4 +51,19 @@ public class SimpleHeapTest {
         assertInOrder(sut, SIZE);
     }
 
-}
\ No newline at end of file
+
+    /**
+     * The slots grow while adding, up to the capacity
+     */
+    @Test
+    public void grows() {
+        int SIZE = SimpleHeap.INITIAL_SLOTS * 5 + 3;
+        SimpleHeap<Integer> sut = new SimpleHeap<>(SIZE);
+        for (int i = SIZE - 1; i >= 0; i--) {
+            assertFalse(sut.isFull());
+            sut.add(i);
+        }
+        assertTrue(sut.isFull());
+        assertInOrder(sut, SIZE);
+    }
+}
@@ -0,0 +1,31 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SortOptionsTest {
+
+    @Test
+    public void parseBytes() {
+        assertEquals(1000, SortOptions.parseBytes("1000"));
+        assertEquals(2 * 1024, SortOptions.parseBytes("2k"));
+        assertEquals(512L * 1024 * 1024, SortOptions.parseBytes("512M"));
+        assertEquals(3L * 1024 * 1024 * 1024, SortOptions.parseBytes(" 3g "));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseInvalidBytes() {
+        SortOptions.parseBytes("3x");
+    }
+
+    @Test
+    public void runBytes() {
+        assertEquals(ChunkStore.SLAB_SIZE, BigFileSorter.getRunBytes(new SortOptions().setMemoryBudget(0)));
+        long budget = 1024L * 1024 * 1024;
+        assertEquals(budget, BigFileSorter.getRunBytes(new SortOptions().setMemoryBudget(budget))
+                * BigFileSorter.NUM_SORTERS, ChunkStore.SLAB_SIZE);
+        assertEquals(budget / 8, BigFileSorter.getRunBytes(new SortOptions().setMemoryBudget(budget)
+                .setInputRanges(8)));
+    }
+}
@@ -5,7 +5,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -40,13 +43,15 @@ public class Utils {
             sufChars[i] = 'p';
         }
         String suf = new String(sufChars);
+        //randomSorter breaks the sort contract, which TimSort detects for big inputs
+        List<String> lines = IntStream.range(0, numLines)
+                .mapToObj(String::valueOf)
+                .map(num -> num + suf)
+                .collect(Collectors.toList());
+        Collections.shuffle(lines, rnd);
         try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(
                 Paths.get(path.getAbsolutePath())))) {
-            IntStream.range(0, numLines)
-                    .mapToObj(String::valueOf)
-                    .map(num -> num + suf)
-                    .sorted(Utils::randomSorter)
-                    .forEach(pw::println);
+            lines.forEach(pw::println);
         }
     }
 
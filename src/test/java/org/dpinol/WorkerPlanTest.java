@@ -0,0 +1,64 @@
+package org.dpinol;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerPlanTest {
+
+    @Test
+    public void singleCore() {
+        WorkerPlan plan = WorkerPlan.choose(1, 100, 500);
+        assertEquals(1, plan.inputRanges);
+        assertEquals(1, plan.sortWorkers);
+    }
+
+    /**
+     * The reader keeps up with the sorters, so ranges would only add readers
+     */
+    @Test
+    public void sortBound() {
+        WorkerPlan plan = WorkerPlan.choose(8, 100, 500);
+        assertEquals(1, plan.inputRanges);
+        assertEquals(5, plan.sortWorkers);
+        plan = WorkerPlan.choose(4, 100, 500);
+        assertEquals(1, plan.inputRanges);
+        assertEquals(3, plan.sortWorkers);
+    }
+
+    /**
+     * A single reader can't feed the cores
+     */
+    @Test
+    public void parseBound() {
+        WorkerPlan plan = WorkerPlan.choose(8, 300, 200);
+        assertEquals(4, plan.inputRanges);
+        assertEquals(4, plan.sortWorkers);
+    }
+
+    @Test
+    public void measure() throws Exception {
+        File input = File.createTempFile("WorkerPlanTest", null);
+        input.deleteOnExit();
+        Utils.writeRandomLines(input, 10_000, Global.BUFFER_SIZE / 100);
+        WorkerPlan plan = WorkerPlan.measure(input, new SortOptions(), 4);
+        assertTrue(plan.toString(), plan.inputRanges >= 1 && plan.inputRanges <= 2);
+        assertTrue(plan.toString(), plan.sortWorkers >= 1 && plan.sortWorkers <= 3);
+    }
+
+    /**
+     * The smallest budget still samples a line
+     */
+    @Test
+    public void measureWithoutBudget() throws Exception {
+        File input = File.createTempFile("WorkerPlanTest", null);
+        input.deleteOnExit();
+        Utils.writeRandomLines(input, 10_000, 3);
+        WorkerPlan plan = WorkerPlan.measure(input, new SortOptions().setMemoryBudget(0), 4);
+        assertTrue(plan.toString(), plan.inputRanges >= 1 && plan.inputRanges <= 2);
+        assertTrue(plan.toString(), plan.sortWorkers >= 1 && plan.sortWorkers <= 3);
+    }
+}